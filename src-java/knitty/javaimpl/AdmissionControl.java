@@ -0,0 +1,171 @@
+package knitty.javaimpl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import clojure.lang.ExceptionInfo;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.Util;
+
+/**
+ * Limits number of concurrently running yanks.
+ * Yanks over the limit wait in a bounded FIFO queue for at most `maxQueueMillis`,
+ * yanks which can't be queued (or wait for too long) fail with a rejection exception.
+ */
+public final class AdmissionControl {
+
+    private static final Keyword IN_FLIGHT     = Keyword.intern("in-flight");
+    private static final Keyword QUEUED        = Keyword.intern("queued");
+    private static final Keyword ADMITTED      = Keyword.intern("admitted");
+    private static final Keyword REJECTED      = Keyword.intern("rejected");
+    private static final Keyword EXPIRED       = Keyword.intern("expired");
+    private static final Keyword MAX_IN_FLIGHT = Keyword.intern("max-in-flight");
+    private static final Keyword MAX_QUEUED    = Keyword.intern("max-queued");
+
+    private static final Keyword KNITTY_REJECTED = Keyword.intern("knitty", "rejected");
+
+    public static final ExceptionInfo QUEUE_FULL = rejection("queue-full");
+    public static final ExceptionInfo QUEUE_TIMEOUT = rejection("queue-timeout");
+
+    private final class Release extends KDeferred.AListener {
+
+        @Override
+        public void success(Object x) {
+            release();
+        }
+
+        @Override
+        public void error(Object e) {
+            release();
+        }
+    }
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long maxQueueMillis;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentLinkedQueue<KDeferred> waiting = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public AdmissionControl(int maxInFlight, int maxQueued, long maxQueueMillis) {
+        if (maxInFlight <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("invalid admission limits");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxQueueMillis = maxQueueMillis;
+    }
+
+    private static ExceptionInfo rejection(String reason) {
+        ExceptionInfo e = new ExceptionInfo(
+            "yank rejected: " + reason,
+            PersistentArrayMap.EMPTY.assoc(KNITTY_REJECTED, Keyword.intern(reason)));
+        e.setStackTrace(new StackTraceElement[0]);
+        return e;
+    }
+
+    public long maxQueueMillis() {
+        return maxQueueMillis;
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            int c = inFlight.get();
+            if (c >= maxInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns null when the permit is acquired immediately, otherwise returns a deferred
+     * realized when the permit is acquired (or failed with a rejection).
+     */
+    public KDeferred acquire() {
+        if (waiting.isEmpty() && tryAcquire()) {
+            admitted.increment();
+            return null;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return KDeferred.wrapErr(QUEUE_FULL);
+        }
+        KDeferred w = KDeferred.create();
+        waiting.offer(w);
+        dispatch();
+        return w;
+    }
+
+    /** Fails a waiting deferred returned by {@link #acquire}, when it is still in the queue. */
+    public void expire(KDeferred w) {
+        if (waiting.remove(w)) {
+            queued.decrementAndGet();
+            expired.increment();
+            rejected.increment();
+            w.error(QUEUE_TIMEOUT);
+        }
+    }
+
+    /** Drops a waiting deferred returned by {@link #acquire}, when its yank is revoked while still queued. */
+    public void withdraw(KDeferred w) {
+        if (waiting.remove(w)) {
+            queued.decrementAndGet();
+            w.error(RevokeException.DEFERRED_REVOKED);
+        }
+    }
+
+    /** Calls the yank function, the permit is released when the returned deferred is realized. */
+    public KDeferred call(IFn yankFn) {
+        KDeferred r;
+        try {
+            r = (KDeferred) yankFn.invoke();
+        } catch (Throwable e) {
+            release();
+            throw Util.sneakyThrow(e);
+        }
+        r.listen(new Release());
+        return r;
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!waiting.isEmpty() && tryAcquire()) {
+            KDeferred w = waiting.poll();
+            if (w == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            admitted.increment();
+            w.success(Boolean.TRUE);
+        }
+    }
+
+    public IPersistentMap stats() {
+        return PersistentArrayMap.EMPTY
+            .assoc(IN_FLIGHT, (long) inFlight.get())
+            .assoc(QUEUED, (long) queued.get())
+            .assoc(ADMITTED, admitted.sum())
+            .assoc(REJECTED, rejected.sum())
+            .assoc(EXPIRED, expired.sum())
+            .assoc(MAX_IN_FLIGHT, (long) maxInFlight)
+            .assoc(MAX_QUEUED, (long) maxQueued);
+    }
+}
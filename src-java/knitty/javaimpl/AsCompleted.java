@@ -0,0 +1,172 @@
+package knitty.javaimpl;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clojure.lang.IFn;
+import clojure.lang.Util;
+import manifold.deferred.IDeferred;
+
+/**
+ * Delivers realized deferreds in completion order.
+ * Either to a single blocking consumer (see {@link #next}) or to a callback (see {@link #consume}),
+ * callback is not called again until a deferred returned by the previous call is realized.
+ */
+public final class AsCompleted implements Iterator<KDeferred> {
+
+    private final class Ls extends KDeferred.AListener {
+
+        private final KDeferred d;
+
+        Ls(KDeferred d) {
+            this.d = d;
+        }
+
+        @Override
+        public void success(Object x) {
+            completed(d);
+        }
+
+        @Override
+        public void error(Object e) {
+            completed(d);
+        }
+    }
+
+    private final class Resume extends KDeferred.AListener {
+
+        @Override
+        public void success(Object x) {
+            busy = false;
+            drain();
+        }
+
+        @Override
+        public void error(Object e) {
+            done.error(e);
+        }
+    }
+
+    private final class Take implements ForkJoinPool.ManagedBlocker {
+
+        KDeferred item;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (item == null) {
+                item = ready.take();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return item != null || (item = ready.poll()) != null;
+        }
+    }
+
+    private final LinkedBlockingQueue<KDeferred> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private int total;
+    private int taken;
+
+    private volatile IFn onNext;
+    private KDeferred done;
+    private volatile boolean busy;
+
+    private AsCompleted() {
+    }
+
+    public static AsCompleted start(Iterator<?> ds) {
+        AsCompleted ac = new AsCompleted();
+        while (ds.hasNext()) {
+            KDeferred d = KDeferred.wrap(ds.next());
+            ac.total++;
+            // retained (being computed by a yank) deferreds are not realized yet
+            if ((d.weakState & KDeferred.STATE_MASK_RLZD) == 0) {
+                d.listen(ac.new Ls(d));
+            } else {
+                ac.ready.offer(d);
+            }
+        }
+        return ac;
+    }
+
+    private void completed(KDeferred d) {
+        ready.offer(d);
+        if (onNext != null) {
+            drain();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return taken < total;
+    }
+
+    /** Blocks until the next deferred is realized. */
+    @Override
+    public KDeferred next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        KDeferred d = ready.poll();
+        if (d == null) {
+            Take t = new Take();
+            try {
+                ForkJoinPool.managedBlock(t);
+            } catch (InterruptedException e) {
+                throw Util.sneakyThrow(e);
+            }
+            d = t.item;
+        }
+        taken++;
+        return d;
+    }
+
+    /**
+     * Calls `onNext` for each realized deferred, calls are never concurrent.
+     * Returns a deferred realized with number of consumed deferreds,
+     * or failed with the first error thrown (or returned as a failed deferred) by `onNext`.
+     * Realizing the returned deferred stops the delivery.
+     */
+    public KDeferred consume(IFn onNext) {
+        this.done = KDeferred.create();
+        this.onNext = onNext;
+        drain();
+        return done;
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            KDeferred d;
+            while (!busy && !done.realized() && (d = ready.poll()) != null) {
+                taken++;
+                Object r;
+                try {
+                    r = onNext.invoke(d);
+                } catch (Throwable e) {
+                    // wip is never released, so nothing is delivered anymore
+                    done.error(e);
+                    return;
+                }
+                if (r instanceof IDeferred) {
+                    KDeferred rd = KDeferred.wrap(r);
+                    if (rd.weakState != KDeferred.STATE_SUCC) {
+                        busy = true;
+                        rd.listen(new Resume());
+                    }
+                }
+            }
+            if (!busy && taken == total) {
+                done.success((long) taken);
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+}
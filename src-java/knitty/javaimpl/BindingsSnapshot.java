@@ -0,0 +1,59 @@
+package knitty.javaimpl;
+
+import java.lang.reflect.Field;
+
+import clojure.lang.Associative;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.Var;
+
+/**
+ * Captures thread bindings of selected vars into a compact binding frame,
+ * which may be installed via {@link Var#resetThreadBindingFrame} like a cloned frame.
+ */
+public final class BindingsSnapshot {
+
+    // 'Var.Frame.TOP' - the empty frame installed on threads without any bindings
+    private static final Object ROOT_FRAME;
+
+    static {
+        try {
+            Field f = Class.forName("clojure.lang.Var$Frame").getDeclaredField("TOP");
+            f.setAccessible(true);
+            ROOT_FRAME = f.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private BindingsSnapshot() {}
+
+    /** Returns the root (empty) binding frame, which is installed on threads without any bindings. */
+    static Object rootFrame() {
+        return ROOT_FRAME;
+    }
+
+    /**
+     * Returns a binding frame with current values of thread-bound vars from {@code vars},
+     * or null when none of them is bound (so there is nothing to convey).
+     */
+    public static Object capture(Iterable<?> vars) {
+        Associative m = null;
+        for (Object x : vars) {
+            Var v = (Var) x;
+            if (v.getThreadBinding() != null) {
+                m = (m == null ? PersistentHashMap.EMPTY : m).assoc(v, v.deref());
+            }
+        }
+        if (m == null) {
+            return null;
+        }
+        Object old = Var.getThreadBindingFrame();
+        Var.resetThreadBindingFrame(ROOT_FRAME);
+        try {
+            Var.pushThreadBindings(m);
+            return Var.getThreadBindingFrame();
+        } finally {
+            Var.resetThreadBindingFrame(old);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package knitty.javaimpl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import clojure.lang.AFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.Util;
+
+public final class BlockingCall implements ForkJoinPool.ManagedBlocker {
+
+    private static final Keyword MANAGED          = Keyword.intern("managed");
+    private static final Keyword DIRECT           = Keyword.intern("direct");
+    private static final Keyword ACTIVE           = Keyword.intern("active");
+    private static final Keyword MAX_COMPENSATION = Keyword.intern("max-compensation");
+
+    private static final Object NONE = new Object();
+
+    private static final class PoolStats {
+        final AtomicInteger active = new AtomicInteger();
+        final LongAdder managed = new LongAdder();
+        final LongAdder direct = new LongAdder();
+        volatile int maxCompensation = Integer.MAX_VALUE;
+    }
+
+    // weak keys - stats must not keep pools, which are shut down, from being collected
+    private static final WeakIdentityMap<ForkJoinPool, PoolStats> STATS = new WeakIdentityMap<>();
+
+    private final AFn fn;
+    private Object result = NONE;
+    private Throwable error;
+
+    private BlockingCall(AFn fn) {
+        this.fn = fn;
+    }
+
+    @Override
+    public boolean block() {
+        if (result == NONE && error == null) {
+            try {
+                result = fn.invoke();
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isReleasable() {
+        return result != NONE || error != null;
+    }
+
+    private static PoolStats poolStats(ForkJoinPool pool) {
+        return STATS.computeIfAbsent(pool, p -> new PoolStats());
+    }
+
+    public static Object call(AFn fn) {
+        Thread t = Thread.currentThread();
+        if (!(t instanceof ForkJoinWorkerThread)) {
+            return fn.invoke();
+        }
+
+        PoolStats s = poolStats(((ForkJoinWorkerThread) t).getPool());
+        if (s.active.incrementAndGet() > s.maxCompensation) {
+            s.active.decrementAndGet();
+            s.direct.increment();
+            return fn.invoke();
+        }
+
+        s.managed.increment();
+        BlockingCall bc = new BlockingCall(fn);
+        try {
+            ForkJoinPool.managedBlock(bc);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Util.sneakyThrow(e);
+        } finally {
+            s.active.decrementAndGet();
+        }
+        if (bc.error != null) {
+            throw Util.sneakyThrow(bc.error);
+        }
+        return bc.result;
+    }
+
+    public static void setMaxCompensation(ForkJoinPool pool, int maxCompensation) {
+        poolStats(pool).maxCompensation = maxCompensation;
+    }
+
+    public static IPersistentMap stats(ForkJoinPool pool) {
+        PoolStats s = poolStats(pool);
+        return PersistentArrayMap.EMPTY
+            .assoc(MANAGED, s.managed.sum())
+            .assoc(DIRECT, s.direct.sum())
+            .assoc(ACTIVE, (long) s.active.get())
+            .assoc(MAX_COMPENSATION, (long) s.maxCompensation);
+    }
+}
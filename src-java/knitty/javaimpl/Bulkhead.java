@@ -0,0 +1,121 @@
+package knitty.javaimpl;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+public final class Bulkhead implements Executor {
+
+    private static final Keyword QUEUED          = Keyword.intern("queued");
+    private static final Keyword ACTIVE          = Keyword.intern("active");
+    private static final Keyword COMPLETED       = Keyword.intern("completed");
+    private static final Keyword MAX_CONCURRENCY = Keyword.intern("max-concurrency");
+
+    private static final ConcurrentHashMap<Keyword, Executor> NAMED = new ConcurrentHashMap<>();
+
+    private final class Task implements Runnable {
+
+        private final Runnable r;
+
+        Task(Runnable r) {
+            this.r = r;
+        }
+
+        @Override
+        public void run() {
+            try {
+                r.run();
+            } finally {
+                active.decrementAndGet();
+                completed.increment();
+                drain();
+            }
+        }
+    }
+
+    private final Executor delegate;
+    private final int maxConcurrency;
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+
+    public Bulkhead(Executor delegate, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("max concurrency must be positive");
+        }
+        this.delegate = Objects.requireNonNull(delegate);
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        queue.offer(r);
+        queued.incrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        for (;;) {
+            int a = active.get();
+            if (a >= maxConcurrency || queued.get() <= 0) {
+                return;
+            }
+            if (!active.compareAndSet(a, a + 1)) {
+                continue;
+            }
+            Runnable r = queue.poll();
+            if (r == null) {
+                active.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            try {
+                delegate.execute(new Task(r));
+            } catch (RuntimeException | Error e) {
+                active.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    public IPersistentMap stats() {
+        return PersistentArrayMap.EMPTY
+            .assoc(QUEUED, (long) queued.get())
+            .assoc(ACTIVE, (long) active.get())
+            .assoc(COMPLETED, completed.sum())
+            .assoc(MAX_CONCURRENCY, (long) maxConcurrency);
+    }
+
+    public static void register(Keyword name, Executor executor) {
+        if (executor == null) {
+            NAMED.remove(name);
+        } else {
+            NAMED.put(name, executor);
+        }
+    }
+
+    public static Executor lookup(Keyword name) {
+        Executor e = NAMED.get(name);
+        if (e == null) {
+            throw new IllegalArgumentException("unknown executor " + name);
+        }
+        return e;
+    }
+
+    public static IPersistentMap named() {
+        IPersistentMap m = PersistentArrayMap.EMPTY;
+        for (Map.Entry<Keyword, Executor> e : NAMED.entrySet()) {
+            m = m.assoc(e.getKey(), e.getValue());
+        }
+        return m;
+    }
+}
@@ -3,6 +3,7 @@ package knitty.javaimpl;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 import clojure.lang.AFn;
 import clojure.lang.Var;
@@ -12,9 +13,48 @@ public abstract class ExecutionPool {
     public abstract void fork(AFn fn);
     public abstract void fork(Runnable r);
     public abstract void run(AFn fn);
+    public abstract ExecutionPool withExecutor(Executor executor);
 
     private ExecutionPool() {}
 
+    private static final class InlineDepth {
+        int value;
+    }
+
+    private static final ThreadLocal<InlineDepth> INLINE_DEPTH = ThreadLocal.withInitial(InlineDepth::new);
+
+    private static volatile int maxInlineDepth = Integer.getInteger("knitty.max-inline-depth", 32);
+
+    /**
+     * Sets how many nested continuations {@link #run} may execute inline on the current thread,
+     * deeper continuations are trampolined to the executor. Zero disables inlining.
+     */
+    public static void setMaxInlineDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("inline depth must not be negative");
+        }
+        maxInlineDepth = depth;
+    }
+
+    public static int getMaxInlineDepth() {
+        return maxInlineDepth;
+    }
+
+    /** Runs {@code fn} inline and returns true, or returns false when the inline depth limit is reached. */
+    private static boolean runInline(AFn fn) {
+        InlineDepth d = INLINE_DEPTH.get();
+        if (d.value >= maxInlineDepth) {
+            return false;
+        }
+        d.value++;
+        try {
+            fn.invoke();
+        } finally {
+            d.value--;
+        }
+        return true;
+    }
+
     public static ExecutionPool adapt(Executor executor) {
         return adapt(executor, null);
     }
@@ -22,6 +62,8 @@ public abstract class ExecutionPool {
     public static ExecutionPool adapt(Executor executor, Object bframe) {
         if (executor instanceof ForkJoinPool) {
             return new ForkJoinPoolPool((ForkJoinPool) executor, bframe);
+        } else if (executor instanceof VirtualExecutor) {
+            return new VirtualThreadPool((VirtualExecutor) executor, bframe);
         } else if (executor != null) {
             return new ExecutorPool(executor, bframe);
         } else {
@@ -29,6 +71,89 @@ public abstract class ExecutionPool {
         }
     }
 
+    public static ExecutionPool adapt(Executor executor, Object bframe, int priority, long deadlineNanos) {
+        if (executor instanceof PriorityExecutor) {
+            return new ExecutorPool(((PriorityExecutor) executor).lane(priority, deadlineNanos), bframe);
+        } else {
+            return adapt(executor, bframe);
+        }
+    }
+
+    /**
+     * Wraps the pool, so all its tasks record queue wait and run time into the executor {@link PoolStats}.
+     * Returned pool must be passed to {@link #instrumentYank} to also record thread hops of the yank.
+     */
+    public static ExecutionPool instrument(ExecutionPool pool, Executor executor) {
+        PoolStats stats = PoolStats.of(executor);
+        return new InstrumentedPool(pool, stats, new PoolStats.Hops(stats));
+    }
+
+    public static void instrumentYank(ExecutionPool pool, KDeferred result) {
+        if (pool instanceof InstrumentedPool) {
+            result.listen(((InstrumentedPool) pool).hops);
+        }
+    }
+
+    static final class InstrumentedPool extends ExecutionPool {
+
+        private final class Task extends AFn {
+            private final AFn fn;
+            private final Runnable r;
+            private final long enqueued = System.nanoTime();
+
+            private Task(AFn fn, Runnable r) {
+                this.fn = fn;
+                this.r = r;
+            }
+
+            @Override
+            public Object invoke() {
+                long started = System.nanoTime();
+                hops.touch();
+                try {
+                    if (fn != null) {
+                        fn.invoke();
+                    } else {
+                        r.run();
+                    }
+                } finally {
+                    stats.recordTask(started - enqueued, System.nanoTime() - started);
+                }
+                return null;
+            }
+        }
+
+        private final ExecutionPool pool;
+        private final PoolStats stats;
+        private final PoolStats.Hops hops;
+
+        InstrumentedPool(ExecutionPool pool, PoolStats stats, PoolStats.Hops hops) {
+            this.pool = pool;
+            this.stats = stats;
+            this.hops = hops;
+        }
+
+        @Override
+        public void fork(AFn fn) {
+            pool.fork(new Task(fn, null));
+        }
+
+        @Override
+        public void fork(Runnable r) {
+            pool.fork((Runnable) new Task(null, r));
+        }
+
+        @Override
+        public void run(AFn fn) {
+            pool.run(new Task(fn, null));
+        }
+
+        @Override
+        public ExecutionPool withExecutor(Executor executor) {
+            return new InstrumentedPool(pool.withExecutor(executor), PoolStats.of(executor), hops);
+        }
+    }
+
     static final class DirectCallPool extends ExecutionPool {
 
         private final Object bframe;
@@ -56,6 +181,11 @@ public abstract class ExecutionPool {
         public void fork(Runnable r) {
             r.run();
         }
+
+        @Override
+        public ExecutionPool withExecutor(Executor executor) {
+            return adapt(executor, bframe);
+        }
     }
 
     static final class ExecutorPool extends ExecutionPool {
@@ -69,20 +199,23 @@ public abstract class ExecutionPool {
 
             @Override
             public void run() {
-                insideExecutor.set(true);
+                ExecutorPool oldp = CURRENT.get();
+                CURRENT.set(ExecutorPool.this);
                 Object oldf = pushBFrame(bframe);
                 try {
                     fn.invoke();
                 } finally {
                     popBFrame(oldf);
-                    insideExecutor.set(false);
+                    CURRENT.set(oldp);
                 }
             }
         }
 
+        // a single thread-local for all pools, so short-lived pools do not pollute thread-local maps
+        private static final ThreadLocal<ExecutorPool> CURRENT = new ThreadLocal<>();
+
         private final Executor executor;
         private final Object bframe;
-        private final ThreadLocal<Boolean> insideExecutor = new ThreadLocal<>();
 
         public ExecutorPool(Executor executor, Object bframe) {
             this.executor = executor;
@@ -96,9 +229,7 @@ public abstract class ExecutionPool {
 
         @Override
         public void run(AFn fn) {
-            if (insideExecutor.get() != null) {
-                fn.invoke();
-            } else {
+            if (CURRENT.get() != this || !runInline(fn)) {
                 this.executor.execute(new FnWrapper(fn));
             }
         }
@@ -107,6 +238,70 @@ public abstract class ExecutionPool {
         public void fork(Runnable r) {
             executor.execute(r);
         }
+
+        @Override
+        public ExecutionPool withExecutor(Executor executor) {
+            return adapt(executor, bframe);
+        }
+    }
+
+    static final class VirtualThreadPool extends ExecutionPool {
+
+        private final class FnWrapper implements Runnable {
+            private final AFn fn;
+
+            private FnWrapper(AFn fn) {
+                this.fn = fn;
+            }
+
+            @Override
+            public void run() {
+                VirtualThreadPool oldp = CURRENT.get();
+                CURRENT.set(VirtualThreadPool.this);
+                Object oldf = pushBFrame(bframe);
+                try {
+                    fn.invoke();
+                } catch (Throwable e) {
+                    KDeferred.logError(e, "uncaught exception in virtual thread");
+                } finally {
+                    popBFrame(oldf);
+                    CURRENT.set(oldp);
+                }
+            }
+        }
+
+        private static final ThreadLocal<VirtualThreadPool> CURRENT = new ThreadLocal<>();
+
+        private final VirtualExecutor executor;
+        private final Object bframe;
+
+        public VirtualThreadPool(VirtualExecutor executor, Object bframe) {
+            this.executor = executor;
+            this.bframe = bframe;
+        }
+
+        @Override
+        public void fork(AFn fn) {
+            executor.execute(new FnWrapper(fn));
+        }
+
+        @Override
+        public void run(AFn fn) {
+            // already on a virtual thread of this yank - run inline, hand off to a new thread when too deep
+            if (CURRENT.get() != this || !runInline(fn)) {
+                executor.execute(new FnWrapper(fn));
+            }
+        }
+
+        @Override
+        public void fork(Runnable r) {
+            executor.execute(r);
+        }
+
+        @Override
+        public ExecutionPool withExecutor(Executor executor) {
+            return adapt(executor, bframe);
+        }
     }
 
     static final class ForkJoinPoolPool extends ExecutionPool {
@@ -153,10 +348,13 @@ public abstract class ExecutionPool {
 
         private final ForkJoinPool pool;
         private final Object bframe;
+        // frame installed on workers while they run tasks of this pool
+        private final Object frame;
 
         public ForkJoinPoolPool(ForkJoinPool pool, Object bframe) {
             this.pool = pool;
             this.bframe = bframe;
+            this.frame = bframe != null ? bframe : BindingsSnapshot.rootFrame();
         }
 
         @Override
@@ -166,13 +364,34 @@ public abstract class ExecutionPool {
 
         @Override
         public void run(AFn fn) {
-            this.pool.execute(new FnForkTask(fn));
+            Thread t = Thread.currentThread();
+            if (t instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) t).getPool() == pool) {
+                // already on a worker of this yank - run inline, trampoline to the pool when too deep
+                if (Var.getThreadBindingFrame() == frame) {
+                    try {
+                        if (runInline(fn)) {
+                            return;
+                        }
+                    } catch (Throwable e) {
+                        KDeferred.logError(e, "uncaugh exception in fj-task");
+                        return;
+                    }
+                }
+                new FnForkTask(fn).fork();
+            } else {
+                this.pool.execute(new FnForkTask(fn));
+            }
         }
 
         @Override
         public void fork(Runnable r) {
             ForkJoinTask.adapt(r).fork();
         }
+
+        @Override
+        public ExecutionPool withExecutor(Executor executor) {
+            return adapt(executor, bframe);
+        }
     }
 
     private static Object pushBFrame(Object bframe) {
@@ -180,6 +399,10 @@ public abstract class ExecutionPool {
             return null;
         }
         Object frame = Var.getThreadBindingFrame();
+        if (frame == bframe) {
+            // frame is already installed (e.g. nested tasks of the same yank) - no need to switch
+            return null;
+        }
         Var.resetThreadBindingFrame(bframe);
         return frame;
     }
@@ -0,0 +1,148 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import clojure.lang.AFn;
+import manifold.deferred.IDeferred;
+
+/**
+ * Awaiter for very large collections of deferreds.
+ * Deferreds are split into chunks, each chunk has its own counter,
+ * so completions contend on a chunk counter, while the shared counter is updated once per chunk.
+ * The first error fails the whole fan-in, remaining deferreds are not awaited.
+ */
+final class FanIn {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private static volatile int threshold = Integer.getInteger("knitty.fan-in-threshold", 4096);
+
+    private static final VarHandle CNT;
+    private static final VarHandle CHUNK_CNT;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            CNT = l.findVarHandle(FanIn.class, "ncnt", long.class);
+            CHUNK_CNT = l.findVarHandle(Chunk.class, "ncnt", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final class Chunk {
+
+        private final FanIn fi;
+
+        @SuppressWarnings("FieldMayBeFinal")
+        private int ncnt = Integer.MAX_VALUE;
+
+        Chunk(FanIn fi) {
+            this.fi = fi;
+        }
+
+        void done() {
+            if ((int) CHUNK_CNT.getAndAddAcquire(this, -1) == 1) {
+                fi.chunkDone();
+            }
+        }
+
+        boolean close(int added) {
+            int a = Integer.MAX_VALUE - added;
+            return (int) CHUNK_CNT.getAndAddRelease(this, -a) == a;
+        }
+    }
+
+    private static final class Ls extends KDeferred.AListener {
+
+        private final Chunk chunk;
+
+        Ls(Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void success(Object x) {
+            chunk.done();
+        }
+
+        @Override
+        public void error(Object e) {
+            chunk.fi.fail(e);
+        }
+    }
+
+    private final AFn ls;
+    private long acnt = Long.MAX_VALUE;
+
+    @SuppressWarnings("FieldMayBeFinal")
+    private long ncnt = Long.MAX_VALUE;
+
+    private FanIn(AFn ls) {
+        this.ls = ls;
+    }
+
+    static int threshold() {
+        return threshold;
+    }
+
+    static void setThreshold(int t) {
+        if (t < 0) {
+            throw new IllegalArgumentException("negative fan-in threshold");
+        }
+        threshold = t;
+    }
+
+    private void chunkDone() {
+        if ((long) CNT.getAndAddAcquire(this, -1L) == 1) {
+            ls.invoke();
+        }
+    }
+
+    private void fail(Object e) {
+        if ((long) CNT.getAndSetAcquire(this, -1L) > 0) {
+            ls.invoke(e);
+        }
+    }
+
+    private boolean failed() {
+        return (long) CNT.getOpaque(this) <= 0;
+    }
+
+    private void closeChunk(Chunk c, int added) {
+        acnt -= 1;
+        if (c.close(added)) {
+            chunkDone();
+        }
+    }
+
+    /** Same as {@link KAwaiter#awaitArr}, but with chunked counters. */
+    static boolean awaitArr(AFn ls, Object[] ds) {
+        FanIn fi = new FanIn(ls);
+        Chunk c = null;
+        int added = 0;
+        for (int i = 0; i < ds.length && !fi.failed(); ++i) {
+            Object d = ds[i];
+            if (d instanceof IDeferred) {
+                KDeferred x = (d instanceof KDeferred) ? (KDeferred) d : KDeferred.wrapDeferred((IDeferred) d);
+                if (x.weakState != KDeferred.STATE_SUCC) {
+                    if (c == null) {
+                        c = new Chunk(fi);
+                    }
+                    added++;
+                    x.listen(new Ls(c));
+                    if (added == CHUNK_SIZE) {
+                        fi.closeChunk(c, added);
+                        c = null;
+                        added = 0;
+                    }
+                }
+            }
+        }
+        if (c != null) {
+            fi.closeChunk(c, added);
+        }
+        long a = Long.MAX_VALUE - fi.acnt;
+        return a == 0 || (long) CNT.getAndAddRelease(fi, -(Long.MAX_VALUE - a)) == Long.MAX_VALUE - a;
+    }
+}
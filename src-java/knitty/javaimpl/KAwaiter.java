@@ -103,7 +103,23 @@ public final class KAwaiter {
         }
     }
 
+    /**
+     * Sets minimal number of deferreds, which are awaited with chunked counters (see {@link FanIn}).
+     * Zero disables chunked awaiting.
+     */
+    public static void setFanInThreshold(int threshold) {
+        FanIn.setThreshold(threshold);
+    }
+
+    public static int getFanInThreshold() {
+        return FanIn.threshold();
+    }
+
     public static boolean awaitArr(AFn ls, Object... ds) {
+        int t = FanIn.threshold();
+        if (t > 0 && ds.length >= t) {
+            return FanIn.awaitArr(ls, ds);
+        }
         KAwaiter ka = start(ls);
         for (int i = 0; i < ds.length && notFailed(ka); ++i) {
             Object d = ds[i];
@@ -4,13 +4,11 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.lang.ref.Cleaner;
 import java.util.Objects;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 import clojure.lang.AFn;
@@ -97,34 +95,6 @@ public final class KDeferred
 
     private final static class ErrBoxLeakable extends ErrBox implements Runnable {
 
-        private static final BlockingQueue<Object> ELD_LEAKED_ERRORS = new ArrayBlockingQueue<>(256);
-        private static final long MAX_ELD_QUEUE_SIZE = 10000000;
-
-        @SuppressWarnings("CallToPrintStackTrace")
-        public static final Thread ELD_LOGGER = new Thread(() -> {
-        while (!Thread.interrupted()) {
-            Object e;
-            try {
-                e = ELD_LEAKED_ERRORS.take();
-            } catch (InterruptedException ex) {
-                return;
-            }
-            try {
-                logWarn(e, "unconsumed deferred in error state");
-            } catch (Exception e1) {
-                e1.printStackTrace();
-            }
-        }
-        }, "knitty-error-leak-logger");
-
-        static {
-            ELD_LOGGER.setDaemon(true);
-            ELD_LOGGER.start();
-        }
-
-        private static final Cleaner ELD_CLEANER =
-            Cleaner.create(r -> new Thread(r, "knitty-error-leak-detector"));
-
         private static final VarHandle CONSUMED;
 
         static {
@@ -148,7 +118,7 @@ public final class KDeferred
         public void run() {
             Object e = this.err;
             if (!isConsumed()) {
-                ELD_LEAKED_ERRORS.offer(e);
+                LeakDetector.leaked(e);
             }
         }
 
@@ -169,8 +139,8 @@ public final class KDeferred
 
         @Override
         public void detectLeakedError(KDeferred d) {
-            if (!this.isConsumed()) {
-                this.refClean = ELD_CLEANER.register(d, this);
+            if (!this.isConsumed() && LeakDetector.shouldTrack()) {
+                this.refClean = LeakDetector.track(d, this);
             }
         }
     }
@@ -199,60 +169,133 @@ public final class KDeferred
         protected AListener() {}
     }
 
-    private static final class Dl extends AListener {
+    /**
+     * Listener which may be cancelled in O(1): it is only marked as cancelled,
+     * cancelled listeners are skipped when the deferred is realized and unlinked lazily.
+     */
+    abstract static class CListener extends AListener {
 
         static final byte ACTIVE = 0;
-        static final byte PENDING_CANCEL = 1;
+        static final byte FIRED = 1;
         static final byte CANCELLED = 2;
 
-        static final VarHandle CANCEL;
+        static final VarHandle STATE;
         static {
             try {
                 MethodHandles.Lookup l = MethodHandles.lookup();
-                CANCEL = l.findVarHandle(Dl.class, "cancel", Byte.TYPE);
+                STATE = l.findVarHandle(CListener.class, "state", Byte.TYPE);
             } catch (ReflectiveOperationException var1) {
                 throw new ExceptionInInitializerError(var1);
             }
         }
 
+        private byte state;
+
+        abstract void onSuccess(Object x);
+        abstract void onError(Object e);
+        abstract void dropCallbacks();
+
+        @Override
+        public final void success(Object x) {
+            if (STATE.compareAndSet(this, ACTIVE, FIRED)) {
+                onSuccess(x);
+            }
+        }
+
+        @Override
+        public final void error(Object e) {
+            if (STATE.compareAndSet(this, ACTIVE, FIRED)) {
+                onError(e);
+            }
+        }
+
+        final boolean cancelled() {
+            return ((byte) STATE.getOpaque(this)) == CANCELLED;
+        }
+
+        final boolean markCancelled() {
+            if (STATE.compareAndSet(this, ACTIVE, CANCELLED)) {
+                dropCallbacks();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Dl extends CListener {
+
         IDeferredListener ls;
-        byte cancel;
 
         public Dl(IDeferredListener ls) {
             this.ls = ls;
         }
 
         @Override
-        public void success(Object x) {
-            if (((byte) CANCEL.getOpaque(this)) == PENDING_CANCEL) {
-                CANCEL.setOpaque(this, CANCELLED);
-                this.ls = null;
-            } else {
-                this.ls.onSuccess(x);
-            }
+        void onSuccess(Object x) {
+            this.ls.onSuccess(x);
         }
 
         @Override
-        public void error(Object e) {
-            if (((byte) CANCEL.getOpaque(this)) == PENDING_CANCEL) {
-                CANCEL.setOpaque(this, CANCELLED);
-                this.ls = null;
-            } else {
-                this.ls.onError(e);
-            }
+        void onError(Object e) {
+            this.ls.onError(e);
+        }
+
+        @Override
+        void dropCallbacks() {
+            this.ls = null;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "[ls=" + Objects.toString(ls) + "]";
+        }
+    }
+
+    /** Handle of a listener registered by {@link #listenCancellable}, may be cancelled in O(1). */
+    public static final class ListenerHandle extends CListener {
+
+        private final KDeferred owner;
+        private IFn onSucc;
+        private IFn onErr;
+
+        private ListenerHandle(KDeferred owner, IFn onSucc, IFn onErr) {
+            this.owner = owner;
+            this.onSucc = onSucc;
+            this.onErr = onErr;
         }
 
-        public boolean cancelled() {
-            return ((byte) CANCEL.getOpaque(this)) == CANCELLED;
+        @Override
+        void onSuccess(Object x) {
+            this.onSucc.invoke(x);
         }
 
-        public boolean acquireForCancel() {
-            return CANCEL.compareAndSet(this, ACTIVE, PENDING_CANCEL);
+        @Override
+        void onError(Object e) {
+            this.onErr.invoke(e);
+        }
+
+        @Override
+        void dropCallbacks() {
+            this.onSucc = null;
+            this.onErr = null;
+        }
+
+        /** Cancels the listener, returns false when callbacks are already called (or cancelled). */
+        public boolean cancel() {
+            if (markCancelled()) {
+                owner.listenerCancelled(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return cancelled();
         }
 
         @Override
         public String toString() {
-            return super.toString() + "[ls=" + Objects.toString(ls) + "]";
+            return super.toString() + "[onSucc=" + Objects.toString(onSucc) + ", onErr=" + Objects.toString(onErr) + "]";
         }
     }
 
@@ -381,58 +424,51 @@ public final class KDeferred
         }
     }
 
-    private final static class Cdl extends AListener implements ForkJoinPool.ManagedBlocker {
-        private final CountDownLatch latch = new CountDownLatch(1);
+    /** Blocked thread, which waits for the deferred - parked directly, without a latch. */
+    private final static class Waiter extends AListener implements ForkJoinPool.ManagedBlocker {
 
-        @Override
-        public void success(Object x) {
-            latch.countDown();
-        }
+        private final Thread thread = Thread.currentThread();
+        private final long deadline;
+        private volatile boolean released;
 
-        @Override
-        public void error(Object e) {
-            latch.countDown();
-        }
-
-        @Override
-        public boolean block() throws InterruptedException {
-            latch.await();
-            return true;
-        }
-
-        @Override
-        public boolean isReleasable() {
-            return latch.getCount() == 0;
-        }
-    }
-
-    private final static class CdlT extends AListener implements ForkJoinPool.ManagedBlocker {
-        private final CountDownLatch latch = new CountDownLatch(1);
-        private final long timeout;
-
-        CdlT(long timeout) {
-            this.timeout = timeout;
+        Waiter(long deadline) {
+            this.deadline = deadline;
         }
 
         @Override
         public void success(Object x) {
-            latch.countDown();
+            released = true;
+            LockSupport.unpark(thread);
         }
 
         @Override
         public void error(Object e) {
-            latch.countDown();
+            released = true;
+            LockSupport.unpark(thread);
         }
 
         @Override
         public boolean block() throws InterruptedException {
-            latch.await(timeout, TimeUnit.MILLISECONDS);
+            while (!released) {
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, left);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
             return true;
         }
 
         @Override
         public boolean isReleasable() {
-            return latch.getCount() == 0;
+            return released || (deadline != 0 && deadline - System.nanoTime() <= 0);
         }
     }
 
@@ -545,6 +581,7 @@ public final class KDeferred
     private static final VarHandle VALUE;
     private static final VarHandle STATE;
     private static final VarHandle LHEAD;
+    private static final VarHandle LCLEAN;
 
     static {
         try {
@@ -553,6 +590,7 @@ public final class KDeferred
             TOKEN = l.findVarHandle(KDeferred.class, "_token", Object.class);
             VALUE = l.findVarHandle(KDeferred.class, "_value", Object.class);
             LHEAD = l.findVarHandle(KDeferred.class, "_lhead", AListener.class);
+            LCLEAN = l.findVarHandle(KDeferred.class, "_lclean", Short.TYPE);
         } catch (ReflectiveOperationException var1) {
             throw new ExceptionInInitializerError(var1);
         }
@@ -585,7 +623,19 @@ public final class KDeferred
         GET_EXECUTOR = f;
     }
 
+    /**
+     * Realized deferreds with at least `threshold` listeners notify them in parallel chunks,
+     * when realized on a worker of the default executor. Zero threshold disables parallel dispatch.
+     */
+    public static void setListenersFanout(int threshold, int chunkSize) {
+        ListenerFanout.setPolicy(threshold, chunkSize);
+    }
+
     private final static Object MISS_VALUE = new MissValue();
+
+    // spinning makes no sense on a single cpu
+    private static volatile int derefSpins =
+        Runtime.getRuntime().availableProcessors() > 1 ? Integer.getInteger("knitty.deref-spins", 256) : 0;
     private final static AListener LS_TOMB = new LsTomb();
 
     final static byte STATE_INIT = 0b0000;
@@ -594,7 +644,12 @@ public final class KDeferred
     final static byte STATE_RTND = 0b0100;
     final static byte STATE_MASK_RLZD = 0b0011;
 
+    // minimal number of cancelled listeners between scans of the listeners list
+    private static final int CLEAN_MIN = 16;
+
     byte weakState;
+    // cancellations left before the next scan, offset by CLEAN_MIN (short fits into the object header gap)
+    private short _lclean;
     private volatile Object _value;
     private volatile Object _token;
     private volatile AListener _lhead;
@@ -682,6 +737,16 @@ public final class KDeferred
         }
     }
 
+    /** Realizes the deferred with a long value of a primitive yarn. */
+    public void fireLong(long x, Object token) {
+        fireValue(x, token);
+    }
+
+    /** Realizes the deferred with a double value of a primitive yarn. */
+    public void fireDouble(double x, Object token) {
+        fireValue(x, token);
+    }
+
     @Override
     public void fireError(Object x) {
         if (TOKEN.getOpaque(this) != null) {
@@ -756,6 +821,9 @@ public final class KDeferred
     private void fireSuccessListeners(Object x) {
         AListener node = (AListener) LHEAD.getAndSet(this, LS_TOMB);
         this.weakState = STATE_SUCC;
+        if (node != null && node.next != null) {
+            node = ListenerFanout.fork(this, node, x, true);
+        }
         while (node != null) {
             AListener curr = node;
             try {
@@ -775,6 +843,9 @@ public final class KDeferred
             eb.detectLeakedError(this);
         } else {
             Object x = eb.getError();
+            if (node.next != null) {
+                node = ListenerFanout.fork(this, node, x, false);
+            }
             while (node != null) {
                 AListener curr = node;
                 try {
@@ -894,15 +965,21 @@ public final class KDeferred
         return false;
     }
 
-    private boolean isCancelledListener(AListener als) {
-        return !((als instanceof Dl) && ((Dl) als).ls == null);
+    /**
+     * Registers callbacks and returns a handle, which may be used to cancel them in O(1).
+     * Callbacks are called immediately when the deferred is already realized.
+     */
+    public ListenerHandle listenCancellable(IFn onSuc, IFn onErr) {
+        ListenerHandle h = new ListenerHandle(this, onSuc, onErr);
+        this.listen(h);
+        return h;
     }
 
-    private Dl findAndCancelListener(AListener head, Object ls) {
+    private Dl findListener(AListener head, Object ls) {
         while (head != null) {
             if (head instanceof Dl) {
                 Dl ahead = (Dl) head;
-                if (ahead.ls == ls && ahead.acquireForCancel()) {
+                if (ahead.ls == ls && !ahead.cancelled()) {
                     return ahead;
                 }
             }
@@ -911,21 +988,53 @@ public final class KDeferred
         return null;
     }
 
-    private void cleanCancelledListeners(AListener head) {
-        // TODO: full scan on all listeners - optimize.
-        while (head != null) {
+    private static boolean isCancelledListener(AListener als) {
+        return (als instanceof CListener) && ((CListener) als).cancelled();
+    }
+
+    void listenerCancelled(CListener ls) {
+        AListener head = (AListener) LHEAD.getAcquire(this);
+        if (head == LS_TOMB) {
+            return;
+        }
+        if (head == ls && LHEAD.compareAndSet(this, head, ls.next)) {
+            // the most recent listener is cancelled - just pop it
+            return;
+        }
+        // amortized O(1): the list is scanned once per max(CLEAN_MIN, live listeners) cancellations
+        int left = CLEAN_MIN + (short) LCLEAN.getAndAdd(this, (short) -1) - 1;
+        if (left == 0) {
+            int live = cleanCancelledListeners();
+            LCLEAN.setOpaque(this, (short) (Math.min(Math.max(live, CLEAN_MIN), Short.MAX_VALUE) - CLEAN_MIN));
+        }
+    }
+
+    private int cleanCancelledListeners() {
+        // cancelled listeners are only bypassed, while new listeners are pushed only to the head,
+        // so concurrent cleanups may leave some cancelled listeners linked, but never unlink an active one
+        AListener head = (AListener) LHEAD.getAcquire(this);
+        while (head != null && head != LS_TOMB && isCancelledListener(head)) {
             AListener next = head.next;
-            if (next == null) {
-                return;
-            }
-            if (isCancelledListener(next)) {
-                if (!head.casNext(next, next.next)) {
-                    // some other cleanup is active - break
-                    return;
-                }
+            AListener x = (AListener) LHEAD.compareAndExchange(this, head, next);
+            head = (x == head) ? next : x;
+        }
+        if (head == null || head == LS_TOMB) {
+            return 0;
+        }
+        int live = 1;
+        AListener prev = head;
+        AListener curr = head.next;
+        while (curr != null) {
+            AListener next = curr.next;
+            if (isCancelledListener(curr)) {
+                prev.casNext(curr, next);
+            } else {
+                live++;
+                prev = curr;
             }
-            head = next;
+            curr = next;
         }
+        return live;
     }
 
     @Override
@@ -934,15 +1043,11 @@ public final class KDeferred
         if (ahead == LS_TOMB) {
             return false;
         }
-        Dl als = findAndCancelListener(ahead, listener);
-        if (als == null) {
-            return false;
-        }
-        ahead = (AListener) LHEAD.getAcquire(this);
-        if (ahead == LS_TOMB && !als.cancelled()) {
+        Dl als = findListener(ahead, listener);
+        if (als == null || !als.markCancelled()) {
             return false;
         }
-        this.cleanCancelledListeners(ahead);
+        this.listenerCancelled(als);
         return true;
     }
 
@@ -1015,6 +1120,16 @@ public final class KDeferred
         return VALUE.getAcquire(this);
     }
 
+    /** Same as {@link #getRaw}, but coerces the value to a long. */
+    public long getLong() {
+        return RT.longCast(getRaw());
+    }
+
+    /** Same as {@link #getRaw}, but coerces the value to a double. */
+    public double getDouble() {
+        return RT.doubleCast(getRaw());
+    }
+
     public Object get() {
         Object v = this.getRaw();
         return (v instanceof ErrBox) ? ((ErrBox) v).raise() : v;
@@ -1052,11 +1167,18 @@ public final class KDeferred
             return timeoutValue;
         }
 
-        CdlT cdl = new CdlT(ms);
-        this.listen(cdl);
+        v = this.spinForValue();
+        if (v != MISS_VALUE) {
+            return unwrapValue(v);
+        }
 
+        // deadline is never 0, as it marks untimed waiter;
+        // timeouts of centuries would overflow the deadline - wait for them without a deadline
+        long nanos = TimeUnit.MILLISECONDS.toNanos(ms);
+        Waiter w = new Waiter(nanos >= Long.MAX_VALUE / 2 ? 0 : (System.nanoTime() + nanos) | 1);
+        this.listen(w);
         try {
-            ForkJoinPool.managedBlock(cdl);
+            ForkJoinPool.managedBlock(w);
         } catch (InterruptedException e) {
             throw Util.sneakyThrow(e);
         }
@@ -1068,16 +1190,46 @@ public final class KDeferred
         return timeoutValue;
     }
 
+    private Object spinForValue() {
+        for (int i = derefSpins; i > 0; i--) {
+            Thread.onSpinWait();
+            Object v = this.getRaw();
+            if (v != MISS_VALUE) {
+                return v;
+            }
+        }
+        return MISS_VALUE;
+    }
+
+    /**
+     * Sets number of spins a blocking deref busy-waits for the value before parking the thread.
+     * Zero disables spinning.
+     */
+    public static void setDerefSpins(int spins) {
+        if (spins < 0) {
+            throw new IllegalArgumentException("negative deref spins");
+        }
+        derefSpins = spins;
+    }
+
+    public static int getDerefSpins() {
+        return derefSpins;
+    }
+
     @Override
     public Object deref() {
         Object v = this.getRaw();
         if (v != MISS_VALUE) {
             return unwrapValue(v);
         }
-        Cdl cdl = new Cdl();
-        this.listen(cdl);
+        v = this.spinForValue();
+        if (v != MISS_VALUE) {
+            return unwrapValue(v);
+        }
+        Waiter w = new Waiter(0);
+        this.listen(w);
         try {
-            ForkJoinPool.managedBlock(cdl);
+            ForkJoinPool.managedBlock(w);
         } catch (InterruptedException e) {
             throw Util.sneakyThrow(e);
         }
@@ -49,7 +49,25 @@ public class KnittyLoader extends DynamicClassLoader {
             cl.loadClass("knitty.javaimpl.YankInputs");
             cl.loadClass("knitty.javaimpl.YankInputsAssoc");
             cl.loadClass("knitty.javaimpl.YankCtx");
+            cl.loadClass("knitty.javaimpl.YankPlan");
+            cl.loadClass("knitty.javaimpl.YankBatch");
+            cl.loadClass("knitty.javaimpl.YarnCache");
+            cl.loadClass("knitty.javaimpl.Singleflight");
+            cl.loadClass("knitty.javaimpl.PriorityExecutor");
+            cl.loadClass("knitty.javaimpl.VirtualExecutor");
+            cl.loadClass("knitty.javaimpl.WeakIdentityMap");
+            cl.loadClass("knitty.javaimpl.BlockingCall");
+            cl.loadClass("knitty.javaimpl.Bulkhead");
+            cl.loadClass("knitty.javaimpl.PoolStats");
+            cl.loadClass("knitty.javaimpl.ListenerFanout");
+            cl.loadClass("knitty.javaimpl.AdmissionControl");
+            cl.loadClass("knitty.javaimpl.YarnCost");
+            cl.loadClass("knitty.javaimpl.BindingsSnapshot");
             cl.loadClass("knitty.javaimpl.YankResult");
+            cl.loadClass("knitty.javaimpl.LeakDetector");
+            cl.loadClass("knitty.javaimpl.FanIn");
+            cl.loadClass("knitty.javaimpl.AsCompleted");
+            cl.loadClass("knitty.javaimpl.MapConcurrent");
         } catch (ClassNotFoundException | IOException e) {
             throw new IllegalStateException(e);
         }
@@ -0,0 +1,200 @@
+package knitty.javaimpl;
+
+import java.lang.ref.Cleaner;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+/**
+ * Detector of errored deferreds, which are garbage collected without anybody consuming their error.
+ * Works in one of modes: off, sampled (only 1/N of errored deferreds are tracked) or full.
+ * Reports are rate-limited, suppressed reports are aggregated by error class.
+ */
+public final class LeakDetector {
+
+    public static final int OFF = 0;
+    public static final int SAMPLED = 1;
+    public static final int FULL = 2;
+
+    private static final Keyword MODE             = Keyword.intern("mode");
+    private static final Keyword SAMPLE_RATE      = Keyword.intern("sample-rate");
+    private static final Keyword MAX_LOGS_PER_SEC = Keyword.intern("max-logs-per-sec");
+    private static final Keyword TRACKED          = Keyword.intern("tracked");
+    private static final Keyword LEAKED           = Keyword.intern("leaked");
+    private static final Keyword SUPPRESSED       = Keyword.intern("suppressed");
+    private static final Keyword[] MODES = {
+        Keyword.intern("off"), Keyword.intern("sampled"), Keyword.intern("full")
+    };
+
+    private static final String MSG = "unconsumed deferred in error state";
+
+    private static volatile int mode = modeProperty();
+    private static volatile int sampleRate = intProperty("knitty.error-leak-sample-rate", 100, 1);
+    private static volatile int maxLogsPerSec = intProperty("knitty.error-leak-max-logs-per-sec", 0, 0);
+
+    private static final LongAdder tracked = new LongAdder();
+    private static final LongAdder leaked = new LongAdder();
+    private static final LongAdder suppressed = new LongAdder();
+
+    private static final BlockingQueue<Object> LEAKED_ERRORS = new ArrayBlockingQueue<>(256);
+
+    private static final Cleaner CLEANER =
+        Cleaner.create(r -> new Thread(r, "knitty-error-leak-detector"));
+
+    private static final class Suppressed {
+        long count;
+        Object lastError;
+    }
+
+    /** Logs leaked errors, owns the rate limiter state. */
+    private static final class Reporter implements Runnable {
+
+        private final Map<Class<?>, Suppressed> suppressedByClass = new HashMap<>();
+        private long windowStart = System.nanoTime();
+        private int windowLogs;
+
+        @Override
+        @SuppressWarnings("CallToPrintStackTrace")
+        public void run() {
+            while (!Thread.interrupted()) {
+                try {
+                    Object e = LEAKED_ERRORS.poll(1, TimeUnit.SECONDS);
+                    rollWindow();
+                    if (e != null) {
+                        report(e);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            }
+        }
+
+        private void rollWindow() {
+            long now = System.nanoTime();
+            if (now - windowStart < TimeUnit.SECONDS.toNanos(1)) {
+                return;
+            }
+            windowStart = now;
+            windowLogs = 0;
+            Iterator<Map.Entry<Class<?>, Suppressed>> it = suppressedByClass.entrySet().iterator();
+            while (it.hasNext() && allowLog()) {
+                Map.Entry<Class<?>, Suppressed> s = it.next();
+                it.remove();
+                KDeferred.logWarn(s.getValue().lastError, String.format(
+                    "%s (%d similar %s reports were suppressed)",
+                    MSG, s.getValue().count, s.getKey().getName()));
+            }
+        }
+
+        private boolean allowLog() {
+            int max = maxLogsPerSec;
+            if (max > 0 && windowLogs >= max) {
+                return false;
+            }
+            windowLogs++;
+            return true;
+        }
+
+        private void report(Object e) {
+            if (allowLog()) {
+                KDeferred.logWarn(e, MSG);
+            } else {
+                suppressed.increment();
+                Suppressed s = suppressedByClass.computeIfAbsent(e.getClass(), c -> new Suppressed());
+                s.count++;
+                s.lastError = e;
+            }
+        }
+    }
+
+    private static final Thread REPORTER = new Thread(new Reporter(), "knitty-error-leak-logger");
+
+    static {
+        REPORTER.setDaemon(true);
+        REPORTER.start();
+    }
+
+    private LeakDetector() {}
+
+    private static int parseMode(String m) {
+        switch (m) {
+            case "off": return OFF;
+            case "sampled": return SAMPLED;
+            case "full": return FULL;
+            default: throw new IllegalArgumentException("unknown error leak detection mode: " + m);
+        }
+    }
+
+    // invalid system properties must not fail class initialization, as every errored deferred needs this class
+    private static int modeProperty() {
+        String m = System.getProperty("knitty.error-leak-detection", "full");
+        try {
+            return parseMode(m);
+        } catch (IllegalArgumentException e) {
+            KDeferred.logWarn(e, "invalid -Dknitty.error-leak-detection, falling back to 'full'");
+            return FULL;
+        }
+    }
+
+    private static int intProperty(String name, int dflt, int min) {
+        int x = Integer.getInteger(name, dflt);
+        if (x < min) {
+            KDeferred.logWarn(
+                new IllegalArgumentException("error leak detection option is out of range: " + x),
+                String.format("invalid -D%s, falling back to %d", name, dflt));
+            return dflt;
+        }
+        return x;
+    }
+
+    public static void configure(Keyword mode, int sampleRate, int maxLogsPerSec) {
+        if (sampleRate <= 0 || maxLogsPerSec < 0) {
+            throw new IllegalArgumentException("invalid error leak detection options");
+        }
+        LeakDetector.sampleRate = sampleRate;
+        LeakDetector.maxLogsPerSec = maxLogsPerSec;
+        LeakDetector.mode = parseMode(mode.getName());
+    }
+
+    /** Returns true when a new errored deferred should be tracked. */
+    static boolean shouldTrack() {
+        switch (mode) {
+            case FULL: return true;
+            case SAMPLED: return ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+            default: return false;
+        }
+    }
+
+    static Cleaner.Cleanable track(Object obj, Runnable onLeak) {
+        tracked.increment();
+        return CLEANER.register(obj, onLeak);
+    }
+
+    static void leaked(Object err) {
+        leaked.increment();
+        if (!LEAKED_ERRORS.offer(err)) {
+            suppressed.increment();
+        }
+    }
+
+    public static IPersistentMap stats() {
+        return PersistentArrayMap.EMPTY
+            .assoc(MODE, MODES[mode])
+            .assoc(SAMPLE_RATE, (long) sampleRate)
+            .assoc(MAX_LOGS_PER_SEC, (long) maxLogsPerSec)
+            .assoc(TRACKED, tracked.sum())
+            .assoc(LEAKED, leaked.sum())
+            .assoc(SUPPRESSED, suppressed.sum());
+    }
+}
@@ -0,0 +1,112 @@
+package knitty.javaimpl;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import clojure.lang.Var;
+
+/**
+ * Optional parallel dispatch of deferred listeners.
+ * When a deferred with many listeners is realized on a worker of its own ForkJoinPool (the default executor),
+ * the listener list is split into chunks, all chunks but the last one are forked to that pool.
+ * Deferreds realized on any other thread notify listeners inline.
+ */
+final class ListenerFanout extends ForkJoinTask<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static volatile int threshold = 0;
+    private static volatile int chunkSize = 16;
+
+    private final KDeferred.AListener head;
+    private final Object x;
+    private final boolean success;
+    private final Object frame;
+
+    private ListenerFanout(KDeferred.AListener head, Object x, boolean success, Object frame) {
+        this.head = head;
+        this.x = x;
+        this.success = success;
+        this.frame = frame;
+    }
+
+    static void setPolicy(int threshold, int chunkSize) {
+        if (threshold < 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("invalid fanout policy");
+        }
+        ListenerFanout.chunkSize = chunkSize;
+        ListenerFanout.threshold = threshold;
+    }
+
+    /**
+     * Forks chunks of listeners to the pool of `owner` when there are at least `threshold` of them
+     * and the current thread is a worker of that pool.
+     * Returns listeners, which should be notified by the caller.
+     */
+    static KDeferred.AListener fork(KDeferred owner, KDeferred.AListener node, Object x, boolean success) {
+        int t = threshold;
+        Thread ct = Thread.currentThread();
+        if (t <= 0 || !(ct instanceof ForkJoinWorkerThread)) {
+            return node;
+        }
+
+        int n = 0;
+        for (KDeferred.AListener c = node; c != null && n < t; c = c.next) {
+            n++;
+        }
+        if (n < t || ((ForkJoinWorkerThread) ct).getPool() != owner.defaultExecutor()) {
+            return node;
+        }
+
+        int cs = chunkSize;
+        Object frame = Var.getThreadBindingFrame();
+        for (;;) {
+            KDeferred.AListener tail = node;
+            for (int i = 1; i < cs && tail.next != null; i++) {
+                tail = tail.next;
+            }
+            if (tail.next == null) {
+                return node;
+            }
+            KDeferred.AListener rest = tail.next;
+            tail.next = null;
+            new ListenerFanout(node, x, success, frame).fork();
+            node = rest;
+        }
+    }
+
+    @Override
+    protected boolean exec() {
+        Object oldf = Var.getThreadBindingFrame();
+        Var.resetThreadBindingFrame(frame);
+        try {
+            KDeferred.AListener node = head;
+            while (node != null) {
+                KDeferred.AListener curr = node;
+                try {
+                    if (success) {
+                        curr.success(x);
+                    } else {
+                        curr.error(x);
+                    }
+                } catch (Throwable e) {
+                    KDeferred.logError(e, String.format("error in deferred handler: %s", curr));
+                }
+                node = curr.next;
+                curr.next = null;
+            }
+        } finally {
+            Var.resetThreadBindingFrame(oldf);
+        }
+        return true;
+    }
+
+    @Override
+    public Void getRawResult() {
+        return null;
+    }
+
+    @Override
+    protected void setRawResult(Void value) {
+    }
+}
@@ -0,0 +1,164 @@
+package knitty.javaimpl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clojure.lang.IFn;
+import clojure.lang.PersistentVector;
+import manifold.deferred.IDeferred;
+import manifold.deferred.IMutableDeferred;
+
+/**
+ * Maps an async function over a collection with at most `maxInFlight` unrealized results at a time.
+ * All the bookkeeping runs in a serialized drain loop, so only one listener per async result is allocated.
+ * The first error fails the result, stops mapping and revokes results which are still in flight.
+ */
+public final class MapConcurrent {
+
+    private final class Slot extends KDeferred.AListener {
+
+        private final int idx;
+        private final Object result;
+        private Object value;
+        private boolean failed;
+
+        Slot(int idx, Object result) {
+            this.idx = idx;
+            this.result = result;
+        }
+
+        @Override
+        public void success(Object x) {
+            this.value = x;
+            completions.offer(this);
+            drain();
+        }
+
+        @Override
+        public void error(Object e) {
+            this.value = e;
+            this.failed = true;
+            completions.offer(this);
+            drain();
+        }
+    }
+
+    private final IFn f;
+    private final Iterator<?> xs;
+    private final int maxInFlight;
+    private final boolean ordered;
+    private final KDeferred done = KDeferred.create();
+
+    private final ConcurrentLinkedQueue<Slot> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // guarded by the drain loop
+    private final ArrayList<Object> results = new ArrayList<>();
+    private final HashSet<Slot> pending = new HashSet<>();
+    private int launched;
+    private boolean exhausted;
+
+    private MapConcurrent(IFn f, Iterator<?> xs, int maxInFlight, boolean ordered) {
+        this.f = f;
+        this.xs = xs;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Returns a deferred with a vector of `(f x)` results.
+     * Results are in order of `xs` when `ordered`, otherwise in completion order.
+     */
+    public static KDeferred map(IFn f, Iterator<?> xs, int maxInFlight, boolean ordered) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("max in-flight must be positive");
+        }
+        MapConcurrent mc = new MapConcurrent(f, xs, maxInFlight, ordered);
+        mc.drain();
+        return mc.done;
+    }
+
+    private void store(int idx, Object x) {
+        if (ordered) {
+            results.set(idx, x);
+        } else {
+            results.add(x);
+        }
+    }
+
+    private void fail(Object e) {
+        done.error(e);
+        for (Slot s : pending) {
+            if (s.result instanceof IMutableDeferred) {
+                ((IMutableDeferred) s.result).error(RevokeException.DEFERRED_REVOKED);
+            }
+        }
+        pending.clear();
+    }
+
+    private void launch() {
+        while (!exhausted && pending.size() < maxInFlight) {
+            Object x;
+            try {
+                // realizes the next element of a lazy seq, which may throw
+                if (!xs.hasNext()) {
+                    exhausted = true;
+                    return;
+                }
+                x = xs.next();
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            int idx = launched++;
+            if (ordered) {
+                results.add(null);
+            }
+            Object r;
+            try {
+                r = f.invoke(x);
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            if (!(r instanceof IDeferred)) {
+                store(idx, r);
+                continue;
+            }
+            KDeferred rd = KDeferred.wrap(r);
+            if (rd.weakState == KDeferred.STATE_SUCC) {
+                store(idx, rd.getRaw());
+            } else {
+                Slot s = new Slot(idx, r);
+                pending.add(s);
+                rd.listen(s);
+            }
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            Slot s;
+            while (!done.realized() && (s = completions.poll()) != null) {
+                pending.remove(s);
+                if (s.failed) {
+                    fail(s.value);
+                } else {
+                    store(s.idx, s.value);
+                }
+            }
+            if (!done.realized()) {
+                launch();
+                if (exhausted && pending.isEmpty() && !done.realized()) {
+                    done.success(PersistentVector.create(results));
+                }
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+}
@@ -0,0 +1,129 @@
+package knitty.javaimpl;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+/**
+ * Per-executor histograms of task queue wait time, task run time (both in nanos) and thread hops per yank.
+ * Values are recorded by {@link ExecutionPool#instrument} wrappers, recording is wait-free.
+ */
+public final class PoolStats {
+
+    private static final Keyword QUEUE_WAIT = Keyword.intern("queue-wait");
+    private static final Keyword RUN_TIME   = Keyword.intern("run-time");
+    private static final Keyword HOPS       = Keyword.intern("hops");
+
+    private static final Keyword COUNT = Keyword.intern("count");
+    private static final Keyword MEAN  = Keyword.intern("mean");
+    private static final Keyword MAX   = Keyword.intern("max");
+    private static final Keyword P50   = Keyword.intern("p50");
+    private static final Keyword P90   = Keyword.intern("p90");
+    private static final Keyword P99   = Keyword.intern("p99");
+    private static final Keyword P999  = Keyword.intern("p999");
+
+    private static final int PRECISION = 2;
+
+    private static final Object DIRECT = new Object();
+    // weak keys - stats must not keep executors, which are shut down, from being collected
+    private static final WeakIdentityMap<Object, PoolStats> STATS = new WeakIdentityMap<>();
+
+    private static final class Metric {
+
+        private final Recorder recorder = new Recorder(PRECISION);
+        private final Histogram total = new Histogram(PRECISION);
+        private Histogram interval;
+
+        void record(long x) {
+            recorder.recordValue(x < 0 ? 0 : x);
+        }
+
+        IPersistentMap snapshot() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return PersistentArrayMap.EMPTY
+                .assoc(COUNT, total.getTotalCount())
+                .assoc(MEAN, total.getMean())
+                .assoc(MAX, total.getMaxValue())
+                .assoc(P50, total.getValueAtPercentile(50.0))
+                .assoc(P90, total.getValueAtPercentile(90.0))
+                .assoc(P99, total.getValueAtPercentile(99.0))
+                .assoc(P999, total.getValueAtPercentile(99.9));
+        }
+
+        void reset() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.reset();
+        }
+    }
+
+    /** Counts thread switches between tasks of a single yank, records them when the yank is done. */
+    static final class Hops extends KDeferred.AListener {
+
+        private static final AtomicIntegerFieldUpdater<Hops> COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(Hops.class, "count");
+
+        private final PoolStats stats;
+        private volatile Thread last = Thread.currentThread();
+        private volatile int count;
+
+        Hops(PoolStats stats) {
+            this.stats = stats;
+        }
+
+        void touch() {
+            Thread t = Thread.currentThread();
+            if (last != t) {
+                last = t;
+                COUNT.incrementAndGet(this);
+            }
+        }
+
+        @Override
+        public void success(Object x) {
+            stats.hops.record(count);
+        }
+
+        @Override
+        public void error(Object e) {
+            stats.hops.record(count);
+        }
+    }
+
+    private final Metric queueWait = new Metric();
+    private final Metric runTime = new Metric();
+    private final Metric hops = new Metric();
+
+    private PoolStats() {}
+
+    public static PoolStats of(Object executor) {
+        return STATS.computeIfAbsent(executor == null ? DIRECT : executor, k -> new PoolStats());
+    }
+
+    public static PoolStats find(Object executor) {
+        return STATS.get(executor == null ? DIRECT : executor);
+    }
+
+    void recordTask(long waitNanos, long runNanos) {
+        queueWait.record(waitNanos);
+        runTime.record(runNanos);
+    }
+
+    public synchronized IPersistentMap snapshot() {
+        return PersistentArrayMap.EMPTY
+            .assoc(QUEUE_WAIT, queueWait.snapshot())
+            .assoc(RUN_TIME, runTime.snapshot())
+            .assoc(HOPS, hops.snapshot());
+    }
+
+    public synchronized void reset() {
+        queueWait.reset();
+        runTime.reset();
+        hops.reset();
+    }
+}
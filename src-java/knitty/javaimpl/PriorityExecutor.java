@@ -0,0 +1,106 @@
+package knitty.javaimpl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor with priority lanes on top of a shared delegate executor.
+ * Every submitted task enqueues itself and schedules a "drain" step on the delegate,
+ * the drain step runs the most urgent pending task (not necessarily the submitted one).
+ * Tasks are ordered by priority (higher first), then by deadline (earlier first), then FIFO.
+ */
+public final class PriorityExecutor implements Executor {
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final class Task implements Comparable<Task> {
+
+        final Runnable r;
+        final int priority;
+        final long deadline;
+        final long seq;
+
+        Task(Runnable r, int priority, long deadline, long seq) {
+            this.r = r;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (priority != o.priority) {
+                return priority > o.priority ? -1 : 1;
+            }
+            if (deadline != o.deadline) {
+                if (deadline == NO_DEADLINE) {
+                    return 1;
+                } else if (o.deadline == NO_DEADLINE) {
+                    return -1;
+                }
+                return deadline - o.deadline < 0 ? -1 : 1;
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    private final class Lane implements Executor {
+
+        private final int priority;
+        private final long deadline;
+
+        Lane(int priority, long deadline) {
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void execute(Runnable r) {
+            submit(r, priority, deadline);
+        }
+    }
+
+    private final Executor delegate;
+    private final int defaultPriority;
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong seq = new AtomicLong();
+
+    private final Runnable drain = () -> {
+        Task t = queue.poll();
+        if (t != null) {
+            t.r.run();
+        }
+    };
+
+    public PriorityExecutor(Executor delegate, int defaultPriority) {
+        this.delegate = delegate;
+        this.defaultPriority = defaultPriority;
+    }
+
+    public PriorityExecutor(Executor delegate) {
+        this(delegate, 0);
+    }
+
+    public Executor delegate() {
+        return delegate;
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        submit(r, defaultPriority, NO_DEADLINE);
+    }
+
+    public void submit(Runnable r, int priority, long deadlineNanos) {
+        queue.add(new Task(r, priority, deadlineNanos, seq.getAndIncrement()));
+        delegate.execute(drain);
+    }
+
+    public Executor lane(int priority, long deadlineNanos) {
+        return new Lane(priority, deadlineNanos);
+    }
+}
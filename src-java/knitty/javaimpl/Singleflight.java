@@ -0,0 +1,72 @@
+package knitty.javaimpl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+public final class Singleflight {
+
+    private static final Keyword CALLS     = Keyword.intern("calls");
+    private static final Keyword COALESCED = Keyword.intern("coalesced");
+    private static final Keyword IN_FLIGHT = Keyword.intern("in-flight");
+
+    private final ConcurrentHashMap<Object, KDeferred> flights = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    private final class Land extends KDeferred.AListener {
+
+        private final Object key;
+        private final KDeferred d;
+
+        Land(Object key, KDeferred d) {
+            this.key = key;
+            this.d = d;
+        }
+
+        @Override
+        public void success(Object x) {
+            flights.remove(key, d);
+        }
+
+        @Override
+        public void error(Object e) {
+            flights.remove(key, d);
+        }
+    }
+
+    /** Returns an in-flight computation for {@code key}, or null when there is none. */
+    public KDeferred follow(Object key) {
+        KDeferred p = flights.get(key);
+        if (p != null) {
+            coalesced.increment();
+        }
+        return p;
+    }
+
+    /**
+     * Registers a new in-flight computation {@code d} for {@code key}.
+     * Returns {@code d} when the caller should run the computation and complete {@code d},
+     * or an already registered deferred otherwise.
+     */
+    public KDeferred join(Object key, KDeferred d) {
+        KDeferred p = flights.putIfAbsent(key, d);
+        if (p != null) {
+            coalesced.increment();
+            return p;
+        }
+        calls.increment();
+        d.listen(new Land(key, d));
+        return d;
+    }
+
+    public IPersistentMap stats() {
+        return PersistentArrayMap.EMPTY
+            .assoc(CALLS, calls.sum())
+            .assoc(COALESCED, coalesced.sum())
+            .assoc(IN_FLIGHT, (long) flights.size());
+    }
+}
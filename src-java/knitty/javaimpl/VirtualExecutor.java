@@ -0,0 +1,68 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs every task on a new virtual thread (Java 21+).
+ * Virtual threads are resolved reflectively, so the class is loadable on older runtimes.
+ */
+public final class VirtualExecutor implements Executor {
+
+    private static final MethodHandle START_VIRTUAL_THREAD;
+    private static final MethodHandle IS_VIRTUAL;
+    static {
+        MethodHandle svt = null;
+        MethodHandle isv = null;
+        try {
+            MethodHandles.Lookup l = MethodHandles.publicLookup();
+            svt = l.findStatic(Thread.class, "startVirtualThread", MethodType.methodType(Thread.class, Runnable.class));
+            isv = l.findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            svt = null;
+            isv = null;
+        }
+        START_VIRTUAL_THREAD = svt;
+        IS_VIRTUAL = isv;
+    }
+
+    private static final VirtualExecutor INSTANCE = START_VIRTUAL_THREAD == null ? null : new VirtualExecutor();
+
+    private VirtualExecutor() {}
+
+    public static boolean isSupported() {
+        return INSTANCE != null;
+    }
+
+    public static VirtualExecutor getInstance() {
+        if (INSTANCE == null) {
+            throw new UnsupportedOperationException("virtual threads are not supported by " + Runtime.version());
+        }
+        return INSTANCE;
+    }
+
+    public static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        try {
+            @SuppressWarnings("unused")
+            Thread t = (Thread) START_VIRTUAL_THREAD.invokeExact(r);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package knitty.javaimpl;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Concurrent map with weakly referenced keys compared by identity.
+ * Lookups are lock-free, entries of collected keys are expunged on insertion.
+ */
+final class WeakIdentityMap<K, V> {
+
+    private static final class WeakKey<K> extends WeakReference<K> {
+
+        private final int hash;
+
+        WeakKey(K key, ReferenceQueue<? super K> queue) {
+            super(key, queue);
+            this.hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            Object k = get();
+            return k != null && o instanceof WeakKey && ((WeakKey<?>) o).get() == k;
+        }
+    }
+
+    /** Plain (non-reference) key for lookups, so {@link #get} does not allocate a {@link WeakReference}. */
+    private static final class LookupKey {
+
+        private final Object key;
+
+        LookupKey(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WeakKey && ((WeakKey<?>) o).get() == key;
+        }
+    }
+
+    private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    public V get(K key) {
+        return map.get(new LookupKey(key));
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        V v = get(key);
+        if (v != null) {
+            return v;
+        }
+        expunge();
+        return map.computeIfAbsent(new WeakKey<>(key, queue), k -> f.apply(key));
+    }
+
+    private void expunge() {
+        Object k;
+        while ((k = queue.poll()) != null) {
+            map.remove(k);
+        }
+    }
+}
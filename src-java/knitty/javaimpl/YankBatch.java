@@ -0,0 +1,124 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+
+import clojure.lang.AFn;
+import clojure.lang.LazilyPersistentVector;
+
+public final class YankBatch {
+
+    private static final VarHandle REMAINING;
+    private static final VarHandle RESULTS = MethodHandles.arrayElementVarHandle(KDeferred[].class);
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            REMAINING = l.findVarHandle(YankBatch.class, "remaining", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final YankCtx[] ctxs;
+    private final YankPlan plan;
+    private final KDeferred[] results;
+    private final KDeferred res;
+
+    @SuppressWarnings("unused")
+    private volatile int remaining;
+
+    private final class ChunkFn extends AFn {
+
+        private final int from;
+        private final int to;
+
+        ChunkFn(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Object invoke() {
+            for (int i = from; i < to && !res.realized(); ++i) {
+                KDeferred r = ctxs[i].yankInline(plan);
+                // volatile store: either 'cancelPending' sees the result, or the check below sees the batch realized
+                RESULTS.setVolatile(results, i, r);
+                if (res.realized()) {
+                    r.error(RevokeException.DEFERRED_REVOKED, null);
+                    return null;
+                }
+                r.listen(new Ls());
+            }
+            return null;
+        }
+    }
+
+    private final class Ls extends KDeferred.AListener {
+
+        @Override
+        public void success(Object x) {
+            if ((int) REMAINING.getAndAdd(YankBatch.this, -1) == 1) {
+                Object[] xs = new Object[results.length];
+                for (int i = 0; i < xs.length; ++i) {
+                    xs[i] = results[i].getRaw();
+                }
+                res.success(LazilyPersistentVector.createOwning(xs), null);
+            }
+        }
+
+        @Override
+        public void error(Object e) {
+            if ((int) REMAINING.getAndSet(YankBatch.this, -1) > 0) {
+                res.error(e, null);
+            }
+        }
+    }
+
+    private final class Canceller extends KDeferred.AListener {
+
+        @Override
+        public void success(Object x) {
+            cancelPending();
+        }
+
+        @Override
+        public void error(Object e) {
+            cancelPending();
+        }
+    }
+
+    private YankBatch(YankCtx[] ctxs, YankPlan plan) {
+        this.ctxs = ctxs;
+        this.plan = plan;
+        this.results = new KDeferred[ctxs.length];
+        this.res = KDeferred.create();
+        this.remaining = ctxs.length;
+    }
+
+    private void cancelPending() {
+        for (int i = 0; i < ctxs.length; ++i) {
+            KDeferred r = (KDeferred) RESULTS.getVolatile(results, i);
+            if (r != null && !r.realized()) {
+                r.error(RevokeException.DEFERRED_REVOKED, null);
+            }
+        }
+    }
+
+    public static KDeferred yank(YankCtx[] ctxs, YankPlan plan, ExecutionPool pool, int chunkSize) {
+        Objects.requireNonNull(plan);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        if (ctxs.length == 0) {
+            return KDeferred.wrapVal(LazilyPersistentVector.createOwning());
+        }
+
+        YankBatch b = new YankBatch(ctxs, plan);
+        b.res.listen0(b.new Canceller());
+        for (int i = 0; i < ctxs.length; i += chunkSize) {
+            pool.run(b.new ChunkFn(i, Math.min(ctxs.length, i + chunkSize)));
+        }
+        return b.res;
+    }
+}
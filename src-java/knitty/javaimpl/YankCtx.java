@@ -2,17 +2,23 @@ package knitty.javaimpl;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
 
 import clojure.lang.AFn;
 import clojure.lang.Associative;
 import clojure.lang.ExceptionInfo;
 import clojure.lang.IExceptionInfo;
+import clojure.lang.IFn;
 import clojure.lang.IPersistentMap;
 import clojure.lang.Keyword;
 import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import manifold.deferred.IMutableDeferred;
 
 public final class YankCtx {
 
@@ -46,6 +52,7 @@ public final class YankCtx {
     private volatile KVCons _added = KVCons.NIL;
 
     private final KDeferred[][] a0;
+    private final int[] slots;
 
     private final YankInputs inputs;
     private final AFn[] yarnsCache;
@@ -60,19 +67,42 @@ public final class YankCtx {
     private final class DoYankFn extends AFn {
 
         private final Iterable<?> yarns;
+        private final Object targets;
         private final KDeferred res;
 
-        private DoYankFn(Iterable<?> yarns, KDeferred res) {
+        private DoYankFn(Iterable<?> yarns, Object targets, KDeferred res) {
             this.yarns = yarns;
+            this.targets = targets;
             this.res = res;
         }
 
         @Override
         public Object invoke() {
             try {
-                doYank(yarns, res);
+                doYank(yarns, targets, res);
             } catch (Throwable t) {
-                res.fireError(wrapYankErr(t, yarns));
+                res.fireError(wrapYankErr(t, targets));
+            }
+            return null;
+        }
+    }
+
+    private final class DoYankPlanFn extends AFn {
+
+        private final YankPlan plan;
+        private final KDeferred res;
+
+        private DoYankPlanFn(YankPlan plan, KDeferred res) {
+            this.plan = plan;
+            this.res = res;
+        }
+
+        @Override
+        public Object invoke() {
+            try {
+                doYank(plan, res);
+            } catch (Throwable t) {
+                res.fireError(wrapYankErr(t, plan.targets));
             }
             return null;
         }
@@ -81,9 +111,9 @@ public final class YankCtx {
     private final class YankDoneLs extends AFn {
 
         private final KDeferred res;
-        private final Iterable<?> yarns;
+        private final Object yarns;
 
-        private YankDoneLs(KDeferred res, Iterable<?> yarns) {
+        private YankDoneLs(KDeferred res, Object yarns) {
             this.res = res;
             this.yarns = yarns;
         }
@@ -91,7 +121,7 @@ public final class YankCtx {
         @Override
         public Object invoke() {
             if (!res.realized()) {
-                res.success(finish(), null);
+                succeed(res, yarns);
             }
             return null;
         }
@@ -121,7 +151,22 @@ public final class YankCtx {
     }
 
     public static YankCtx create(Object inputs, YarnProvider yp, Executor executor, Object tracer, boolean preloadInputs, Object bframe) {
-        ExecutionPool pool = ExecutionPool.adapt(executor, bframe);
+        return create(inputs, yp, ExecutionPool.adapt(executor, bframe), tracer, preloadInputs);
+    }
+
+    public static YankCtx create(Object inputs, YarnProvider yp, ExecutionPool pool, Object tracer, boolean preloadInputs) {
+        return create(inputs, yp, null, 0, pool, tracer, preloadInputs);
+    }
+
+    public static YankCtx create(Object inputs, YankPlan plan, Executor executor, Object tracer, boolean preloadInputs, Object bframe) {
+        return create(inputs, plan.registry, plan.slots, plan.slotsCount, ExecutionPool.adapt(executor, bframe), tracer, preloadInputs);
+    }
+
+    public static YankCtx create(Object inputs, YankPlan plan, ExecutionPool pool, Object tracer, boolean preloadInputs) {
+        return create(inputs, plan.registry, plan.slots, plan.slotsCount, pool, tracer, preloadInputs);
+    }
+
+    private static YankCtx create(Object inputs, YarnProvider yp, int[] slots, int slotsCount, ExecutionPool pool, Object tracer, boolean preloadInputs) {
         YankInputs yinputs;
 
         if (inputs instanceof YankInputs) {
@@ -132,7 +177,7 @@ public final class YankCtx {
             throw new IllegalArgumentException("yank input must implement clojure.lang.Associative");
         }
 
-        YankCtx ctx = new YankCtx(yinputs, yp, pool, tracer, preloadInputs);
+        YankCtx ctx = new YankCtx(yinputs, yp, slots, slotsCount, pool, tracer, preloadInputs);
         if (preloadInputs) {
             preloadInputs(yinputs, ctx);
         }
@@ -147,7 +192,7 @@ public final class YankCtx {
             public Object invoke(Object _a, Object k, Object v) {
                 if (k instanceof Keyword) {
                     int i = kwMapper.resolveByKeyword((Keyword) k);
-                    if (i != -1) {
+                    if (i != -1 && ctx.hasSlot(i)) {
                         KDeferred d = ctx.pull(i);
                         if (d.retain()) {
                             d.chain(v, ctx.token);
@@ -159,9 +204,10 @@ public final class YankCtx {
         }, null);
     }
 
-    private YankCtx(YankInputs inputs, YarnProvider yp, ExecutionPool pool, Object tracer, boolean preloadInputs) {
+    private YankCtx(YankInputs inputs, YarnProvider yp, int[] slots, int slotsCount, ExecutionPool pool, Object tracer, boolean preloadInputs) {
         this.kwMapper = KwMapper.getInstance();
-        this.a0 = new KDeferred[((kwMapper.maxIndex() + ASIZE) >> ASHIFT)][];
+        this.slots = slots;
+        this.a0 = new KDeferred[(((slots == null ? kwMapper.maxIndex() : slotsCount) + ASIZE) >> ASHIFT)][];
         this.inputs = inputs;
         this.yarnsCache = yp.ycache();
         this.yankerProvider = yp;
@@ -171,7 +217,33 @@ public final class YankCtx {
         this.loadInputs = !preloadInputs;
     }
 
+    private boolean hasSlot(int i) {
+        return slots == null || (i < slots.length && slots[i] != -1);
+    }
+
+    private int slot(int i) {
+        int s = i < slots.length ? slots[i] : -1;
+        if (s == -1) {
+            throw new IllegalStateException("yarn " + kwMapper.resolveByIndex(i) + " is not reachable from yank plan");
+        }
+        return s;
+    }
+
     private Exception wrapYankErr(Object error0, Object yarns) {
+        KVCons added0 = (KVCons) ADDED.getAndSet(this, null);
+        return wrapYankErr(error0, yarns, added0 == null ? null : finish(added0, yarns));
+    }
+
+    private Exception wrapYankErr(Object error0, Object yarns, YankResult result) {
+        return wrapYankErr(error0, inputs.unwrapInputs(), yarns, result);
+    }
+
+    /** Wraps an error of a yank, which failed before it was started (e.g. rejected by admission control). */
+    public static Exception wrapError(Object error0, Object inputs, Object yarns) {
+        return wrapYankErr(error0, inputs, yarns, null);
+    }
+
+    private static Exception wrapYankErr(Object error0, Object inputs, Object yarns, YankResult result) {
 
         Throwable error;
         if (error0 instanceof Throwable) {
@@ -191,8 +263,8 @@ public final class YankCtx {
         }
 
         exdata = exdata
-            .assoc(KNITTY_FAILED_POY, this.finish())
-            .assoc(KNITTY_YANKED_POY, inputs.unwrapInputs())
+            .assoc(KNITTY_FAILED_POY, result)
+            .assoc(KNITTY_YANKED_POY, inputs)
             .assoc(KNITTY_YANKED_YARNS, yarns)
             .assoc(KNITTY_YANK_ERROR, Boolean.TRUE);
 
@@ -200,9 +272,9 @@ public final class YankCtx {
     }
 
 
-    void doYank(Iterable<?> yarns, KDeferred res) {
+    void doYank(Iterable<?> yarns, Object targets, KDeferred res) {
 
-        AFn ls = new YankDoneLs(res, yarns);
+        AFn ls = new YankDoneLs(res, targets);
         KAwaiter ka = KAwaiter.start(ls);
 
         for (Object x : yarns) {
@@ -228,18 +300,100 @@ public final class YankCtx {
         }
 
         if (ka.await()) {
-            res.success(finish(), null);
+            succeed(res, targets);
+        }
+    }
+
+    void doYank(YankPlan plan, KDeferred res) {
+
+        AFn ls = new YankDoneLs(res, plan.targets);
+        KAwaiter ka = KAwaiter.start(ls);
+
+        Keyword[] keys = plan.keys;
+        AFn[] yarns = plan.yarns;
+        int[] idxs = plan.idxs;
+        for (int j = 0; j < idxs.length; ++j) {
+            ka.add(this.fetch(idxs[j], keys[j], yarns[j]));
+        }
+
+        if (ka.await()) {
+            succeed(res, plan.targets);
         }
     }
 
     public KDeferred yank(Iterable<?> yarns) {
+        return yank(yarns, yarns);
+    }
+
+    private KDeferred yank(Iterable<?> yarns, Object targets) {
         Objects.requireNonNull(yarns);
         KDeferred res = KDeferred.create();
-        this.pool.run(new DoYankFn(yarns, res));
+        this.pool.run(new DoYankFn(yarns, targets, res));
+        res.listen0(canceller());
+        return res;
+    }
+
+    private void checkPlan(YankPlan plan) {
+        Objects.requireNonNull(plan);
+        if (plan.registry != this.yankerProvider) {
+            throw new IllegalArgumentException("yank plan is compiled for another registry");
+        }
+    }
+
+    KDeferred yankInline(YankPlan plan) {
+        checkPlan(plan);
+        KDeferred res = KDeferred.create();
         res.listen0(canceller());
+        new DoYankPlanFn(plan, res).invoke();
         return res;
     }
 
+    public KDeferred yank(YankPlan plan) {
+        checkPlan(plan);
+        KDeferred res = KDeferred.create();
+        this.pool.run(new DoYankPlanFn(plan, res));
+        res.listen0(canceller());
+        return res;
+    }
+
+    public KDeferred reyank(YankResult prev, IFn invalidated) {
+        Objects.requireNonNull(prev);
+        if (prev.registry != this.yankerProvider) {
+            throw new IllegalArgumentException("yank result is computed with another registry");
+        }
+        ArrayList<Object> yarns = new ArrayList<>();
+        for (KVCons a = prev.added; a.d != null; a = a.next) {
+            if (a.d.weakState == KDeferred.STATE_SUCC && !RT.booleanCast(invalidated.invoke(a.k))) {
+                reuse(kwMapper.resolveByKeyword(a.k), a.k, a.d);
+            } else if (yankerProvider.yarn(a.k) != null) {
+                yarns.add(a.k);
+            }
+        }
+        return yank(PersistentVector.create(yarns), prev.targets);
+    }
+
+    private void reuse(int i, Keyword k, KDeferred d) {
+        if (!hasSlot(i)) {
+            return;
+        }
+        if (slots != null) {
+            i = slot(i);
+        }
+        int i0 = i >> ASHIFT;
+        KDeferred[] a1 = (KDeferred[]) AR0.getOpaque(a0, i0);
+        if (a1 == null) {
+            a1 = this.pullChunk(i0);
+        }
+        if (AR1.compareAndSet(a1, i & AMASK, null, d)) {
+            KVCons a;
+            while ((a = (KVCons) ADDED.getAcquire(this)) != null) {
+                if (ADDED.weakCompareAndSetRelease(this, a, new KVCons(a, k, d))) {
+                    return;
+                }
+            }
+        }
+    }
+
     private KDeferred[] pullChunk(int i0) {
         KDeferred[] a11 = new KDeferred[ASIZE];
         KDeferred[] res;
@@ -252,6 +406,9 @@ public final class YankCtx {
     }
 
     public final KDeferred pull(int i) {
+        if (slots != null) {
+            i = slot(i);
+        }
         int i0 = i >> ASHIFT;
         KDeferred[] a1 = (KDeferred[]) AR0.getOpaque(a0, i0);
         if (a1 == null) {
@@ -278,6 +435,18 @@ public final class YankCtx {
         return token;
     }
 
+    public YarnCache yarnCache(Keyword k, long maxSize, long ttlMillis) {
+        return yankerProvider.yarnCache(k, maxSize, ttlMillis);
+    }
+
+    public ExecutionPool namedPool(Keyword name) {
+        return pool.withExecutor(Bulkhead.lookup(name));
+    }
+
+    public Singleflight singleflight(Keyword k) {
+        return yankerProvider.singleflight(k);
+    }
+
     private boolean fetch0(KDeferred d, int i, Keyword k) {
 
         if (loadInputs) {
@@ -330,6 +499,10 @@ public final class YankCtx {
         YSC.setRelease(yarnsCache, idx, yarn);
     }
 
+    static AFn getYarnFromCache(AFn[] yarnsCache, int idx) {
+        return (AFn) YSC.getAcquire(yarnsCache, idx);
+    }
+
     private KVCons freeze() {
         KVCons a = (KVCons) ADDED.getAndSet(this, null);
         if (a == null) {
@@ -342,14 +515,50 @@ public final class YankCtx {
         return ((KVCons) ADDED.getOpaque(this)) == null;
     }
 
-    YankResult finish() {
-        KVCons added0 = this.freeze();
+    /** Returns true when the yank is cancelled (or already finished), so yarns results are not needed anymore. */
+    public boolean isCancelled() {
+        return isFrozen();
+    }
+
+    private static final class CancelResult extends KDeferred.AListener {
+
+        private final Object result;
+
+        CancelResult(Object result) {
+            this.result = result;
+        }
+
+        @Override
+        public void success(Object x) {
+        }
+
+        @Override
+        public void error(Object e) {
+            if (result instanceof IMutableDeferred) {
+                ((IMutableDeferred) result).error(RevokeException.DEFERRED_REVOKED);
+            }
+        }
+    }
+
+    /** Cancels an async yarn result (deferred) when the yarn is revoked before the result is realized. */
+    public static void cancelOnRevoke(KDeferred dest, Object result) {
+        dest.listen(new CancelResult(result));
+    }
+
+    private void succeed(KDeferred res, Object yarns) {
+        KVCons added0 = (KVCons) ADDED.getAndSet(this, null);
+        if (added0 != null) {
+            res.success(finish(added0, yarns), null);
+        }
+    }
+
+    private YankResult finish(KVCons added0, Object yarns) {
         for (KVCons a = added0; a.d != null; a = a.next) {
             if (a.d.retain()) {
                 a.d.error(RevokeException.DEFERRED_REVOKED, this.token);
             }
         }
-        return new YankResult(inputs, a0, added0, kwMapper);
+        return new YankResult(inputs, a0, slots, added0, kwMapper, yankerProvider, yarns);
     }
 
     KDeferred.AListener canceller() {
@@ -377,12 +586,28 @@ public final class YankCtx {
     }
 
     public void cancel(Throwable cause) {
+        revokeAll(this.freeze(), cause);
+    }
+
+    private void revokeAll(KVCons added0, Throwable cause) {
         CancellationException ex = new RevokeException("yankctx is cancelled");
         if (cause != null) {
             ex.addSuppressed(cause);
         }
-        for (KVCons a = this.freeze(); a.d != null; a = a.next) {
-            a.d.error(ex, token);
+        for (KVCons a = added0; a.d != null; a = a.next) {
+            if (!a.d.realized()) {
+                a.d.error(ex, token);
+            }
+        }
+    }
+
+    public void timeout(KDeferred res, Object yarns) {
+        KVCons added0 = (KVCons) ADDED.getAndSet(this, null);
+        if (added0 == null) {
+            return;
         }
+        TimeoutException te = new TimeoutException("yank timeout");
+        res.error(wrapYankErr(te, yarns, finish(added0, yarns)), null);
+        revokeAll(added0, te);
     }
 }
@@ -0,0 +1,124 @@
+package knitty.javaimpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+
+import clojure.lang.AFn;
+import clojure.lang.Keyword;
+
+public final class YankPlan {
+
+    private static final Keyword KEYFN = Keyword.intern("key");
+
+    public final YarnProvider registry;
+    public final Object targets;
+    public final Object reachable;
+
+    final Keyword[] keys;
+    final int[] idxs;
+    final AFn[] yarns;
+    final int[] slots;
+    final int slotsCount;
+
+    public YankPlan(YarnProvider registry, Iterable<?> targets, Iterable<?> reachable) {
+        this(registry, targets, reachable, false);
+    }
+
+    public YankPlan(YarnProvider registry, Iterable<?> targets, Iterable<?> reachable, boolean compact) {
+        Objects.requireNonNull(registry);
+        Objects.requireNonNull(targets);
+
+        KwMapper kwMapper = KwMapper.getInstance();
+        AFn[] ycache = registry.ycache();
+
+        ArrayList<Keyword> ks = new ArrayList<>();
+        ArrayList<AFn> ys = new ArrayList<>();
+        HashSet<Keyword> adhoc = new HashSet<>();
+        for (Object x : targets) {
+            Objects.requireNonNull(x, "yarn must be non-null");
+            if (x instanceof Keyword) {
+                Keyword k = (Keyword) x;
+                ks.add(k);
+                ys.add(resolveYarn(registry, ycache, kwMapper, k));
+            } else {
+                AFn y = (AFn) x;
+                Keyword k = (Keyword) KEYFN.invoke(y.invoke());
+                ks.add(k);
+                ys.add(y);
+                adhoc.add(k);
+            }
+        }
+
+        if (reachable != null) {
+            for (Object x : reachable) {
+                if (!adhoc.contains(x)) {
+                    resolveYarn(registry, ycache, kwMapper, (Keyword) x);
+                }
+            }
+        }
+
+        int n = ks.size();
+        this.registry = registry;
+        this.targets = targets;
+        this.reachable = reachable;
+        this.keys = ks.toArray(new Keyword[n]);
+        this.yarns = ys.toArray(new AFn[n]);
+        this.idxs = new int[n];
+        for (int j = 0; j < n; ++j) {
+            int i = kwMapper.resolveByKeyword(keys[j]);
+            if (i == -1) {
+                throw new IllegalArgumentException("unknown yarn " + keys[j]);
+            }
+            this.idxs[j] = i;
+        }
+
+        if (compact) {
+            Objects.requireNonNull(reachable, "compact plan requires a set of reachable yarns");
+            int[] ss = new int[kwMapper.maxIndex() + 1];
+            Arrays.fill(ss, -1);
+            int c = 0;
+            for (Object x : reachable) {
+                int i = kwMapper.resolveByKeyword((Keyword) x);
+                if (i == -1) {
+                    throw new IllegalArgumentException("unknown yarn " + x);
+                }
+                if (ss[i] == -1) {
+                    ss[i] = c++;
+                }
+            }
+            this.slots = ss;
+            this.slotsCount = c;
+        } else {
+            this.slots = null;
+            this.slotsCount = 0;
+        }
+    }
+
+    public boolean isCompact() {
+        return slots != null;
+    }
+
+    private static AFn resolveYarn(YarnProvider registry, AFn[] ycache, KwMapper kwMapper, Keyword k) {
+        int i = kwMapper.resolveByKeyword(k);
+        if (i == -1) {
+            throw new IllegalArgumentException("unknown yarn " + k);
+        }
+        AFn y = i < ycache.length ? YankCtx.getYarnFromCache(ycache, i) : null;
+        if (y == null) {
+            y = registry.yarn(k);
+            if (y == null) {
+                throw new IllegalArgumentException("unknown yarn " + k);
+            }
+            if (i < ycache.length) {
+                YankCtx.putYarnIntoCache(ycache, i, y);
+            }
+        }
+        return y;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+}
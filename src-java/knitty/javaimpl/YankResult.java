@@ -35,8 +35,11 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 
     final YankInputs inputs;
     final KDeferred[][] yrns;
+    final int[] slots;
     final YankCtx.KVCons added;
     final KwMapper kwmapper;
+    final YarnProvider registry;
+    final Object targets;
     final IPersistentMap meta;
 
     private final Delay mapDelay = new Delay(new AFn() {
@@ -46,22 +49,39 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
         }
     });
 
-    protected YankResult(YankInputs inputs, KDeferred[][] yrns, YankCtx.KVCons added, KwMapper kwmapper) {
-        this.inputs = inputs;
-        this.yrns = yrns;
-        this.added = added;
-        this.kwmapper = kwmapper;
-        this.meta = inputs.meta();
+    protected YankResult(
+            YankInputs inputs, KDeferred[][] yrns, int[] slots, YankCtx.KVCons added, KwMapper kwmapper,
+            YarnProvider registry, Object targets) {
+        this(inputs, yrns, slots, added, kwmapper, registry, targets, inputs.meta());
     }
 
-    private YankResult(YankInputs inputs, KDeferred[][] yrns, YankCtx.KVCons added, KwMapper kwmapper, IPersistentMap meta) {
+    private YankResult(
+            YankInputs inputs, KDeferred[][] yrns, int[] slots, YankCtx.KVCons added, KwMapper kwmapper,
+            YarnProvider registry, Object targets, IPersistentMap meta) {
         this.inputs = inputs;
         this.yrns = yrns;
+        this.slots = slots;
         this.added = added;
         this.kwmapper = kwmapper;
+        this.registry = registry;
+        this.targets = targets;
         this.meta = meta;
     }
 
+    public Associative inputsMap() {
+        return inputs.toAssociative();
+    }
+
+    /** Registry used to compute the result. */
+    public YarnProvider registry() {
+        return registry;
+    }
+
+    /** Yarns requested by the yank. */
+    public Object targets() {
+        return targets;
+    }
+
     Object toMap0() {
         KVCons added0 = added;
         if (added0.next == null) {
@@ -184,7 +204,7 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 
     @Override
     public IObj withMeta(IPersistentMap meta) {
-        return new YankResult(inputs, yrns, added, kwmapper, meta);
+        return new YankResult(inputs, yrns, slots, added, kwmapper, registry, targets, meta);
     }
 
     @Override
@@ -226,16 +246,24 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
 	    return mapDelay.deref();
     }
 
-    @Override
-    public Object get(int i, Keyword k, Object fallback) {
+    private KDeferred yarnAt(int i) {
+        if (slots != null) {
+            i = i < slots.length ? slots[i] : -1;
+            if (i == -1) {
+                return null;
+            }
+        }
         int i0 = i >> ASHIFT;
         int i1 = i & AMASK;
         KDeferred[] yrns1 = (KDeferred[]) AR0.getOpaque(yrns, i0);
-        if (yrns1 != null) {
-            KDeferred r = (KDeferred) AR1.getOpaque(yrns1, i1);
-            if (r != null) {
-                return r.unwrap();
-            }
+        return yrns1 == null ? null : (KDeferred) AR1.getOpaque(yrns1, i1);
+    }
+
+    @Override
+    public Object get(int i, Keyword k, Object fallback) {
+        KDeferred r = yarnAt(i);
+        if (r != null) {
+            return r.unwrap();
         }
         return inputs.get(i, k, fallback);
     }
@@ -247,13 +275,7 @@ public final class YankResult extends YankInputs implements IObj, IDeref {
             if (i == -1) {
                 return notFound;
             }
-            int i0 = i >> ASHIFT;
-            int i1 = i & AMASK;
-            KDeferred[] yrns1 = (KDeferred[]) AR0.getOpaque(yrns, i0);
-            if (yrns1 == null) {
-                return notFound;
-            }
-            KDeferred r = (KDeferred) AR1.getOpaque(yrns1, i1);
+            KDeferred r = yarnAt(i);
             return r == null ? notFound : r.unwrap();
         }
         return inputs.valAt(key, notFound);
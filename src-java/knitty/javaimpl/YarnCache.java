@@ -0,0 +1,152 @@
+package knitty.javaimpl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+public final class YarnCache {
+
+    public static final Object NONE = new Object();
+
+    private static final Keyword HITS      = Keyword.intern("hits");
+    private static final Keyword MISSES    = Keyword.intern("misses");
+    private static final Keyword EVICTIONS = Keyword.intern("evictions");
+    private static final Keyword SIZE      = Keyword.intern("size");
+    private static final Keyword MAX_SIZE  = Keyword.intern("max-size");
+
+    private static final class Entry {
+
+        final Object key;
+        final Object value;
+        final long expiresAt;
+        volatile boolean visited;
+
+        Entry(Object key, Object value, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<Object, Entry> map = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public final long maxSize;
+    public final long ttlNanos;
+
+    public YarnCache(long maxSize, long ttlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("cache max size must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+    }
+
+    private boolean expired(Entry e, long now) {
+        return ttlNanos > 0 && now - e.expiresAt > 0;
+    }
+
+    private void remove(Entry e) {
+        if (map.remove(e.key, e)) {
+            size.decrementAndGet();
+            evictions.increment();
+        }
+    }
+
+    public Object get(Object key) {
+        Entry e = map.get(key);
+        if (e == null) {
+            misses.increment();
+            return NONE;
+        }
+        if (ttlNanos > 0 && expired(e, System.nanoTime())) {
+            remove(e);
+            misses.increment();
+            return NONE;
+        }
+        if (!e.visited) {
+            e.visited = true;
+        }
+        hits.increment();
+        return e.value;
+    }
+
+    public void put(Object key, Object value) {
+        Entry e = new Entry(key, value, ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0);
+        if (map.put(key, e) == null) {
+            size.incrementAndGet();
+        }
+        queue.offer(e);
+        if (queued.incrementAndGet() > 2 * maxSize || size.get() > maxSize) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        // CLOCK-style second chance: entries visited since the last pass are requeued once.
+        // Stale queue entries (replaced or expired) are dropped on the way.
+        // Once the cache fits into maxSize, the queue is only compacted: live entries are kept as is.
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = ttlNanos > 0 ? System.nanoTime() : 0;
+            Entry e;
+            while ((size.get() > maxSize || queued.get() > 2 * maxSize) && (e = queue.poll()) != null) {
+                queued.decrementAndGet();
+                if (map.get(e.key) != e) {
+                    continue;
+                }
+                if (expired(e, now)) {
+                    remove(e);
+                } else if (size.get() <= maxSize) {
+                    queue.offer(e);
+                    queued.incrementAndGet();
+                } else if (e.visited) {
+                    e.visited = false;
+                    queue.offer(e);
+                    queued.incrementAndGet();
+                } else {
+                    remove(e);
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    public void clear() {
+        evictLock.lock();
+        try {
+            map.clear();
+            queue.clear();
+            size.set(0);
+            queued.set(0);
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    public IPersistentMap stats() {
+        return PersistentArrayMap.EMPTY
+            .assoc(HITS, hits.sum())
+            .assoc(MISSES, misses.sum())
+            .assoc(EVICTIONS, evictions.sum())
+            .assoc(SIZE, (long) size.get())
+            .assoc(MAX_SIZE, maxSize);
+    }
+}
@@ -0,0 +1,93 @@
+package knitty.javaimpl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+/**
+ * Observed cost of a yarn body (EWMA of execution time in nanos) for yarns with {@code ^{:fork :auto}}.
+ * Yarns cheaper than the threshold run inline, more expensive ones are forked.
+ */
+public final class YarnCost {
+
+    private static final Keyword EWMA_NS  = Keyword.intern("ewma-ns");
+    private static final Keyword FORK     = Keyword.intern("fork");
+    private static final Keyword FORKED   = Keyword.intern("forked");
+    private static final Keyword INLINED  = Keyword.intern("inlined");
+
+    private static final VarHandle EWMA;
+    static {
+        try {
+            EWMA = MethodHandles.lookup().findVarHandle(YarnCost.class, "ewma", Long.TYPE);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // weight of a new sample is 1/2^EWMA_SHIFT
+    private static final int EWMA_SHIFT = 3;
+
+    private static volatile long thresholdNanos = Long.getLong("knitty.auto-fork-threshold-ns", 20_000L);
+
+    private static final ConcurrentHashMap<Keyword, YarnCost> COSTS = new ConcurrentHashMap<>();
+
+    private long ewma;
+    private final LongAdder forked = new LongAdder();
+    private final LongAdder inlined = new LongAdder();
+
+    private YarnCost() {}
+
+    /** Creates a new cost tracker for the yarn, replaces tracker of the previous yarn definition. */
+    public static YarnCost forYarn(Keyword k) {
+        YarnCost c = new YarnCost();
+        COSTS.put(k, c);
+        return c;
+    }
+
+    public static void setForkThreshold(long nanos) {
+        thresholdNanos = nanos;
+    }
+
+    public static long getForkThreshold() {
+        return thresholdNanos;
+    }
+
+    public boolean shouldFork() {
+        if ((long) EWMA.getOpaque(this) >= thresholdNanos) {
+            forked.increment();
+            return true;
+        } else {
+            inlined.increment();
+            return false;
+        }
+    }
+
+    public void record(long nanos) {
+        // racy updates may lose a sample, which is fine for an estimation
+        long e = (long) EWMA.getOpaque(this);
+        EWMA.setOpaque(this, e + ((nanos - e) >> EWMA_SHIFT));
+    }
+
+    public IPersistentMap stats() {
+        long e = (long) EWMA.getOpaque(this);
+        return PersistentArrayMap.EMPTY
+            .assoc(EWMA_NS, e)
+            .assoc(FORK, e >= thresholdNanos)
+            .assoc(FORKED, forked.sum())
+            .assoc(INLINED, inlined.sum());
+    }
+
+    public static IPersistentMap allStats() {
+        IPersistentMap m = PersistentArrayMap.EMPTY;
+        for (Map.Entry<Keyword, YarnCost> e : COSTS.entrySet()) {
+            m = m.assoc(e.getKey(), e.getValue().stats());
+        }
+        return m;
+    }
+}
@@ -6,4 +6,16 @@ import clojure.lang.AFn;
 public interface YarnProvider {
     AFn yarn(Keyword k);
     AFn[] ycache();
+
+    default YarnCache yarnCache(Keyword k, long maxSize, long ttlMillis) {
+        return null;
+    }
+
+    default Singleflight singleflight(Keyword k) {
+        return null;
+    }
+
+    default AdmissionControl admissionControl() {
+        return null;
+    }
 }
@@ -20,6 +20,17 @@
    (alter-var-root #'*tracing* (constantly (boolean enable)))))
 
 
+(def ^:dynamic *pool-stats*
+  false)
+
+(defn enable-pool-stats!
+  "Globally enables recording of executor statistics (see `pool-stats`)."
+  ([]
+   (enable-pool-stats! true))
+  ([enable]
+   (alter-var-root #'*pool-stats* (constantly (boolean enable)))))
+
+
 (defn set-executor!
   "Globally set knitty executor, returns old value."
   [executor]
@@ -28,6 +39,15 @@
     @a))
 
 
+(defn set-max-inline-depth!
+  "Globally sets how many nested async continuations may run inline on the current executor thread,
+   deeper continuations are resubmitted to the executor. Zero disables inlining. Returns old value."
+  [depth]
+  (let [old (knitty.javaimpl.ExecutionPool/getMaxInlineDepth)]
+    (knitty.javaimpl.ExecutionPool/setMaxInlineDepth (int depth))
+    old))
+
+
 (defn register-yarn
   "Registers a Yarn into the global registry. Does nothing if the Yarn
    is already registered and the `no-override` flag is true."
@@ -216,8 +236,22 @@
 
    Metadata on the yarn name (or binding map) may also contain:
    - `:spec`           Instructs 'defyarn' to automatically register the defined clojure-spec on ::yarn-key.
-   - `:fork`           Runs the node via FJP fork.
+   - `:fork`           Runs the node via FJP fork. When `:auto` - forks only yarns which body is observed
+                       to be more expensive than a threshold (see `set-auto-fork-threshold!`).
+   - `:blocking`       Runs the yarn body via `ForkJoinPool/managedBlock`, so the pool may compensate
+                       a blocked worker with a spare thread (see `knitty.deferred/blocking-stats`).
+   - `:executor`       Runs the node and its continuations on a named executor (see `register-executor!`),
+                       supersedes `:fork`.
    - `:reorder-deps`   Reorders yarn dependencies based on their definition order (default true).
+   - `:cache`          Caches yarn values across yanks, keyed by values of dependencies (only sync dependencies are allowed).
+                       Either `true` or a map `{:max-size n, :ttl-ms t}` (default max size is 1024, no ttl).
+   - `:coalesce`       Shares an in-flight computation between concurrent yanks with the same dependency values
+                       (only sync dependencies are allowed).
+   - `:timeout`        Fails the yarn when its async result is not realized within the specified number of milliseconds.
+   - `:cache-key`      Function of a map {dependency-yarn value}, which returns a key for `:cache` and `:coalesce`.
+   - `:tag`            `long` or `double` (e.g. `^long` hint on the yarn name), the yarn value is computed with primitive math.
+                       Such yarn must return its value synchronously and can't be cached or coalesced.
+                       Sync dependencies hinted with `^long` / `^double` are also bound without boxing.
 
    Examples:
 
@@ -265,7 +299,16 @@
      `do
      (when spec `(s/def ~k ~spec))
      `(register-yarn ~y)
-     `(def ~nm ~k))))
+     `(def ~(cond-> nm (impl/prim-tag nm) (vary-meta dissoc :tag)) ~k))))
+
+
+(defmacro cancelled?
+  "Returns true when the current yank is cancelled (or already finished), so the yarn result is not needed.
+   Might be used only inside a yarn body, e.g. to stop a long computation early."
+  []
+  (when-not (contains? &env '__yank_ctx)
+    (throw (ex-info "cancelled? is used outside of a yarn body" {})))
+  `(.isCancelled ~(with-meta '__yank_ctx {:tag 'knitty.javaimpl.YankCtx})))
 
 
 (defmacro defyarn-multi
@@ -316,6 +359,110 @@
 (defmacro ^:private pick-opt [opts key default]
   `(if (contains? ~opts ~key) (~key ~opts) ~default))
 
+(defn- yank-timeout [timeout deadline-ms]
+  (let [d (when deadline-ms (- (long deadline-ms) (System/currentTimeMillis)))]
+    (cond
+      (nil? d) timeout
+      (nil? timeout) d
+      :else (min (long timeout) (long d)))))
+
+(defn- priority-value ^long [p]
+  (case p
+    :high 10
+    :normal 0
+    :low -10
+    (long p)))
+
+(defn- execution-pool
+  ^knitty.javaimpl.ExecutionPool [executor bframe priority timeout]
+  (knitty.javaimpl.ExecutionPool/adapt
+   executor
+   bframe
+   (int (priority-value priority))
+   (if timeout
+     (+ (System/nanoTime) (* (long timeout) 1000000))
+     knitty.javaimpl.PriorityExecutor/NO_DEADLINE)))
+
+(defn- binding-frame [bindings]
+  (cond
+    (coll? bindings) (knitty.javaimpl.BindingsSnapshot/capture bindings)
+    bindings (clojure.lang.Var/cloneThreadBindingFrame)
+    :else nil))
+
+(defn- instrument-pool
+  ^knitty.javaimpl.ExecutionPool [^knitty.javaimpl.ExecutionPool pool executor opts]
+  (trace/if-pool-stats
+   (if (pick-opt opts :pool-stats *pool-stats*)
+     (knitty.javaimpl.ExecutionPool/instrument pool executor)
+     pool)
+   pool))
+
+(defn- run-admitted
+  ^knitty.javaimpl.KDeferred
+  [^knitty.javaimpl.AdmissionControl admission timeout inputs yarns yank-fn]
+  (if-some [w (.acquire admission)]
+    (let [qt (.maxQueueMillis admission)
+          qt (if timeout (min qt (long timeout)) qt)
+          r (kd/bind w
+                     (fn [_] (.call admission yank-fn))
+                     (fn [e] (throw (knitty.javaimpl.YankCtx/wrapError e inputs yarns))))]
+      (when-not (.isRealized w)
+        (kd/on-timeout w qt #(.expire admission %))
+        ;; yank is revoked while queued - don't run it when admitted
+        (kd/listen! r (fn [_]) (fn [_] (.withdraw admission w))))
+      r)
+    (.call admission yank-fn)))
+
+(defmacro ^:private let-yank-opts
+  "Parses options shared by all kinds of yanks, binds an execution pool, `:preload` and `:tracing` flags,
+   timeout (from `:timeout` and `:deadline-ms`) and admission control."
+  [[pool preload tracing timeout admission] opts registry & body]
+  `(let [opts# ~opts
+         ^knitty.javaimpl.YarnProvider registry# ~registry
+         executor# (pick-opt opts# :executor kd/*executor*)
+         ~preload (boolean (pick-opt opts# :preload false))
+         ~tracing (trace/if-tracing (pick-opt opts# :tracing *tracing*))
+         ~timeout (yank-timeout (pick-opt opts# :timeout nil) (pick-opt opts# :deadline-ms nil))
+         bframe# (binding-frame (pick-opt opts# :bindings true))
+         pool# (execution-pool executor# bframe# (pick-opt opts# :priority 0) ~timeout)
+         ~pool (instrument-pool pool# executor# opts#)
+         ~admission (pick-opt opts# :admission (.admissionControl registry#))]
+     ~@body))
+
+(defn- run-yank
+  [inputs yarns ^knitty.javaimpl.YankPlan plan opts yank-fn]
+  (let [^knitty.javaimpl.YarnProvider registry (if plan (.-registry plan) (pick-opt opts :registry *registry*))]
+    (let-yank-opts
+     [pool preload tracing timeout admission] opts registry
+     (let [tracer (trace/if-tracing (when tracing (trace/create-tracer inputs yarns)))
+           ctx (if plan
+                 (knitty.javaimpl.YankCtx/create inputs plan pool tracer preload)
+                 (knitty.javaimpl.YankCtx/create inputs registry pool tracer preload))
+           ^knitty.javaimpl.KDeferred r (if admission
+                                          (run-admitted admission timeout inputs yarns #(yank-fn ctx))
+                                          (yank-fn ctx))]
+       (trace/if-pool-stats
+        (knitty.javaimpl.ExecutionPool/instrumentYank pool r))
+       (when timeout
+         (kd/on-timeout r timeout #(.timeout ctx % yarns)))
+       (trace/if-tracing
+        (if tracer
+          (let [r' (kd/bind
+                    r
+                    (fn [x]
+                      (vary-meta x update :knitty/trace conj (trace/capture-trace! tracer)))
+                    (fn [e]
+                      (throw
+                       (ex-info
+                        (ex-message e)
+                        (assoc (ex-data e) :knitty/trace (conj (:knitty/trace (meta inputs))
+                                                               (trace/capture-trace! tracer)))
+                        (ex-cause e)))))]
+            (kd/revoke-to r' r))
+          r)
+        r)))))
+
+
 (defn yank*
   "Computes missing nodes. Always returns a deferred resolved to a YankResult.
    YankResult implements ILookup, Seqable, IObj, IKVReduce, IReduceInit.
@@ -324,37 +471,145 @@
     - `:executor`  An instance of `java.util.concurrent.Executor` used to run code.
     - `:preload`   Preloads all values from the input map.
     - `:bindings`  A flag indicating that thread-local bindings should be captured and installed for yarns.
+                   Or a set of vars, then only bindings of these vars are captured (cheaper).
     - `:tracing`   A flag indicating whether to capture tracing (introduces some performance penalty).
+    - `:admission` Admission control (see `admission-control`), overrides one attached to the registry.
+    - `:pool-stats` A flag indicating whether to record executor statistics (see `pool-stats`).
     - `:registry`  A Knitty registry with available yarns, useful for mocking code.
+    - `:timeout`   Fails the yank with a timeout after the specified number of milliseconds,
+                   unrealized yarns are cancelled and no new yarns are started.
+    - `:deadline-ms`  Same as `:timeout`, but an absolute deadline (as `System/currentTimeMillis`).
+    - `:priority`  Priority of all tasks of the yank (a number or one of `:high`, `:normal`, `:low`),
+                   takes effect with executors created by `knitty.deferred/priority-executor`.
+                   Tasks with the same priority are ordered by the yank deadline (if any).
   "
   ([inputs yarns]
    (yank* inputs yarns nil))
   ([inputs yarns opts]
-   (let [registry (pick-opt opts :registry *registry*)
-         executor (pick-opt opts :executor kd/*executor*)
-         preload  (pick-opt opts :preload false)
-         bindings (pick-opt opts :bindings true)
-         tracing  (trace/if-tracing (pick-opt opts :tracing *tracing*))
-         tracer (trace/if-tracing (when tracing (trace/create-tracer inputs yarns)))
-         bframe (when bindings (clojure.lang.Var/cloneThreadBindingFrame))
-         ctx (knitty.javaimpl.YankCtx/create inputs registry executor tracer (boolean preload) bframe)
-         r (.yank ctx yarns)]
-     (trace/if-tracing
-      (if tracer
-        (let [r' (kd/bind
-                  r
-                  (fn [x]
-                    (vary-meta x update :knitty/trace conj (trace/capture-trace! tracer)))
-                  (fn [e]
-                    (throw
-                     (ex-info
-                      (ex-message e)
-                      (assoc (ex-data e) :knitty/trace (conj (:knitty/trace (meta inputs))
-                                                             (trace/capture-trace! tracer)))
-                      (ex-cause e)))))]
-          (kd/revoke-to r' r))
-        r)
-      r))))
+   (run-yank inputs yarns nil opts #(.yank ^knitty.javaimpl.YankCtx % ^Iterable yarns))))
+
+
+(defn compile-plan
+  "Resolves a fixed set of target yarns once and returns a reusable `knitty.javaimpl.YankPlan`.
+   Plan keeps resolved yarn indices, prefetched yarn implementations
+   and a set of all reachable yarns (see `.-reachable`).
+   Plan is bound to the registry, so yarns redefined afterwards are not visible to the plan.
+
+   Options are:
+    - `:compact`  Yank contexts use a dense index space of reachable yarns,
+                  so per-yank allocation depends on the graph size instead of the registry size.
+
+     (def p (compile-plan [total average]))
+     @(yank-plan {input [1 2 3]} p)
+   "
+  (^knitty.javaimpl.YankPlan [yarns]
+   (compile-plan *registry* yarns nil))
+  (^knitty.javaimpl.YankPlan [registry yarns]
+   (compile-plan registry yarns nil))
+  (^knitty.javaimpl.YankPlan [registry yarns opts]
+   (knitty.javaimpl.YankPlan.
+    registry
+    yarns
+    (impl/yarns-closure registry yarns)
+    (boolean (pick-opt opts :compact false)))))
+
+
+(defn yank-plan*
+  "Like `yank*`, but runs a plan compiled by `compile-plan`.
+   Accepts the same options except `:registry` (plan is bound to its registry)."
+  ([inputs plan]
+   (yank-plan* inputs plan nil))
+  ([inputs ^knitty.javaimpl.YankPlan plan opts]
+   (run-yank inputs (.-targets plan) plan opts #(.yank ^knitty.javaimpl.YankCtx % plan))))
+
+
+(defn re-yank*
+  "Recomputes a YankResult `yr` after some of its inputs were changed.
+   Yarns which depend (transitively) on keys from `changes` are yanked again,
+   all other successfully computed yarns are reused from `yr` as is.
+   Returns a deferred resolved to a new YankResult.
+   Accepts the same options as `yank*` except `:registry` (the one used to compute `yr` is reused).
+
+     (def r @(yank* {input 1} [total]))
+     @(re-yank* r {input 2})
+   "
+  ([yr changes]
+   (re-yank* yr changes nil))
+  ([^knitty.javaimpl.YankResult yr changes opts]
+   (let [registry (.registry yr)
+         inputs (reduce-kv assoc (.inputsMap yr) changes)
+         invalidated (impl/depends-on-fn registry (keys changes))]
+     (run-yank inputs (.targets yr) nil (assoc opts :registry registry)
+               #(.reyank ^knitty.javaimpl.YankCtx % yr invalidated)))))
+
+
+(defn yank-batch*
+  "Yanks the same `yarns` for every input map from `inputs`.
+   Returns a deferred resolved to a vector of YankResults, in the order of `inputs`.
+   The deferred fails with the first yank error, remaining yanks are cancelled.
+   Argument `yarns` may be a collection of yarns or a plan compiled by `compile-plan`.
+
+   Accepts the same options as `yank*` (`:timeout` and `:deadline-ms` limit the whole batch), plus:
+    - `:chunk-size`  Number of inputs yanked by a single executor task (default 16).
+  "
+  ([inputs yarns]
+   (yank-batch* inputs yarns nil))
+  ([inputs yarns opts]
+   (let [^knitty.javaimpl.YankPlan plan (if (instance? knitty.javaimpl.YankPlan yarns)
+                                          yarns
+                                          (compile-plan (pick-opt opts :registry *registry*) yarns))]
+     (let-yank-opts
+      [pool preload tracing timeout admission] opts (.-registry plan)
+      (let [chunk-size (pick-opt opts :chunk-size 16)
+            targets (.-targets plan)
+            inputs (vec inputs)
+            tracers (trace/if-tracing
+                     (when tracing
+                       (mapv #(trace/create-tracer % targets) inputs)))
+            ctxs (into-array
+                  knitty.javaimpl.YankCtx
+                  (map-indexed
+                   (fn [i x]
+                     (knitty.javaimpl.YankCtx/create
+                      x plan pool (when tracers (nth tracers i)) preload))
+                   inputs))
+            batch (volatile! nil)
+            yank-fn #(vreset! batch (knitty.javaimpl.YankBatch/yank ctxs plan pool (int chunk-size)))
+            ^knitty.javaimpl.KDeferred r (if admission
+                                           (run-admitted admission timeout inputs targets yank-fn)
+                                           (yank-fn))]
+        (trace/if-pool-stats
+         (knitty.javaimpl.ExecutionPool/instrumentYank pool r))
+        (when timeout
+          ;; failed batch revokes all its pending yanks
+          (kd/on-timeout r timeout
+                         (fn [_]
+                           (when-some [b @batch]
+                             (kd/error! b (knitty.javaimpl.YankCtx/wrapError
+                                           (java.util.concurrent.TimeoutException. "yank timeout")
+                                           inputs targets))))))
+        (trace/if-tracing
+         (if tracers
+           (-> r
+               (kd/bind
+                (fn [xs]
+                  (mapv (fn [x t] (vary-meta x update :knitty/trace conj (trace/capture-trace! t)))
+                        xs tracers)))
+               (kd/revoke-to r))
+           r)
+         r))))))
+
+
+(defmacro yank-batch
+  "Like `yank`, but yanks the same `yarns` for each input map.
+   Returns a deferred resolved to a vector of maps, see `yank-batch*`."
+  ([inputs yarns]
+   `(yank-batch ~inputs ~yarns nil))
+  ([inputs yarns & {:as opts}]
+   `(let [r# (yank-batch* ~inputs ~yarns ~opts)]
+      (-> r#
+          (kd/bind #(mapv yr->map %))
+          (kd/revoke-to r#)))))
 
 
 (defn yr->map
@@ -377,6 +632,29 @@
           (kd/revoke-to r#)))))
 
 
+(defmacro yank-plan
+  "Like `yank`, but runs a plan compiled by `compile-plan`. Always returns a deferred."
+  ([inputs plan]
+   `(yank-plan ~inputs ~plan nil))
+  ([inputs plan & {:as opts}]
+   `(let [r# (yank-plan* ~inputs ~plan ~opts)]
+      (-> r#
+          (kd/bind yr->map)
+          (kd/revoke-to r#)))))
+
+
+(defmacro re-yank
+  "Like `yank`, but recomputes a previous YankResult with changed inputs, see `re-yank*`.
+   Always returns a deferred."
+  ([yr changes]
+   `(re-yank ~yr ~changes nil))
+  ([yr changes & {:as opts}]
+   `(let [r# (re-yank* ~yr ~changes ~opts)]
+      (-> r#
+          (kd/bind yr->map)
+          (kd/revoke-to r#)))))
+
+
 (defmacro yank1
   "Computes and returns a single node.
    Intended to be used in REPL sessions where you need to retrieve just a single yarn value.
@@ -400,6 +678,115 @@
             (kd/revoke-to r#))))))
 
 
+(defn yarn-cache-stats
+  "Returns hit/miss/eviction counters of yarn caches (see `:cache` yarn option), keyed by yarn."
+  ([]
+   (yarn-cache-stats *registry*))
+  ([registry]
+   (update-vals (impl/yarn-caches registry) #(.stats ^knitty.javaimpl.YarnCache %))))
+
+
+(defn clear-yarn-caches!
+  "Drops all values cached by yarns (see `:cache` yarn option)."
+  ([]
+   (clear-yarn-caches! *registry*))
+  ([registry]
+   (run! #(.clear ^knitty.javaimpl.YarnCache %) (vals (impl/yarn-caches registry)))))
+
+
+(defn yarn-coalesce-stats
+  "Returns counters of coalesced yarns (see `:coalesce` yarn option), keyed by yarn."
+  ([]
+   (yarn-coalesce-stats *registry*))
+  ([registry]
+   (update-vals (impl/yarn-singleflights registry) #(.stats ^knitty.javaimpl.Singleflight %))))
+
+
+(defn register-executor!
+  "Registers a named executor, which is used by yarns with the `:executor` option.
+   Pass `nil` to unregister the name. Usually the executor is a `knitty.deferred/bulkhead`."
+  [name executor]
+  (knitty.javaimpl.Bulkhead/register name executor))
+
+
+(defn executor-stats
+  "Returns queue depth and active tasks of registered bulkhead executors, keyed by name."
+  []
+  (into
+   {}
+   (keep (fn [[k e]] (when (instance? knitty.javaimpl.Bulkhead e) [k (.stats ^knitty.javaimpl.Bulkhead e)])))
+   (knitty.javaimpl.Bulkhead/named)))
+
+
+(defn pool-stats
+  "Returns histograms of tasks run by yanks on the executor (`kd/*executor*` by default):
+   time spent in a queue (`:queue-wait`, nanos), time spent running yarn code (`:run-time`, nanos)
+   and number of thread switches per yank (`:hops`). Each histogram is a map with keys
+   `:count`, `:mean`, `:max`, `:p50`, `:p90`, `:p99` and `:p999`.
+   Statistics are recorded only for yanks with the `:pool-stats` option (see `enable-pool-stats!`)."
+  ([]
+   (pool-stats kd/*executor*))
+  ([executor]
+   (some-> (knitty.javaimpl.PoolStats/find executor) .snapshot)))
+
+
+(defn reset-pool-stats!
+  "Drops all recorded executor statistics (see `pool-stats`)."
+  ([]
+   (reset-pool-stats! kd/*executor*))
+  ([executor]
+   (some-> (knitty.javaimpl.PoolStats/find executor) .reset)))
+
+
+(defn admission-control
+  "Creates an admission control for yanks, which may be passed as the `:admission` yank option
+   or attached to the registry via `set-admission-control!`. Options are:
+    - `:max-in-flight`  Maximum number of concurrently running yanks (required).
+    - `:max-queued`     Maximum number of yanks waiting for admission (default 0).
+    - `:max-queue-ms`   Maximum time a yank may wait for admission (default 1000).
+   Rejected yanks fail with an exception, see `yank-rejected?`."
+  [{:keys [max-in-flight max-queued max-queue-ms]
+    :or {max-queued 0, max-queue-ms 1000}}]
+  (knitty.javaimpl.AdmissionControl. (int max-in-flight) (int max-queued) (long max-queue-ms)))
+
+
+(defn set-admission-control!
+  "Globally attaches admission control (or nil) to the registry."
+  [admission]
+  (alter-var-root #'*registry* impl/with-admission-control admission))
+
+
+(defn admission-stats
+  "Returns current in-flight and queued yanks, as well as admitted and rejected counters
+   of the admission control (attached to the registry by default)."
+  ([]
+   (admission-stats (.admissionControl ^knitty.javaimpl.YarnProvider *registry*)))
+  ([^knitty.javaimpl.AdmissionControl admission]
+   (some-> admission .stats)))
+
+
+(defn yank-rejected?
+  "Returns true if the exception was thrown because the yank was rejected by admission control."
+  [ex]
+  (some? (:knitty/rejected (ex-data ex))))
+
+
+(defn set-auto-fork-threshold!
+  "Globally sets the cost (in nanoseconds) of yarns with `^{:fork :auto}`, above which the yarn is forked.
+   Returns old value."
+  [nanos]
+  (let [old (knitty.javaimpl.YarnCost/getForkThreshold)]
+    (knitty.javaimpl.YarnCost/setForkThreshold (long nanos))
+    old))
+
+
+(defn auto-fork-stats
+  "Returns learned decisions of yarns with `^{:fork :auto}`, keyed by yarn:
+   observed cost (`:ewma-ns`), current decision (`:fork`) and number of forked and inlined calls."
+  []
+  (knitty.javaimpl.YarnCost/allStats))
+
+
 (defn yank-error?
   "Returns true if the exception was rethrown by a `yank` function."
   [ex]
@@ -29,7 +29,7 @@
     ScheduledExecutorService
     ScheduledThreadPoolExecutor
     TimeUnit]
-   [knitty.javaimpl KAwaiter KDeferred]
+   [knitty.javaimpl AsCompleted BlockingCall Bulkhead KAwaiter KDeferred LeakDetector MapConcurrent PriorityExecutor VirtualExecutor]
    [manifold.deferred IDeferred IMutableDeferred]))
 
 
@@ -60,6 +60,7 @@
   - :keep-alive-seconds  - Idle thread keep-alive time in seconds (default: 60)
   - :min-runnable        - Minimum number of runnable threads (default: 1)
   - :async-mode          - If true, uses async mode for task scheduling (default: false)
+  - :max-compensation    - Maximum number of concurrently running blocking yarns compensated by spare threads
   "
   ^ForkJoinPool
   [{:keys [parallelism
@@ -71,7 +72,8 @@
            saturate
            keep-alive-seconds
            min-runnable
-           async-mode]}]
+           async-mode
+           max-compensation]}]
   {:pre [(or (not factory) (factory-prefix))]}
   (let [parallelism (or parallelism (.availableProcessors (Runtime/getRuntime)))
         factory (or factory (enumerate-fjp-factory (or factory-prefix "knitty-fjp")))
@@ -84,17 +86,20 @@
         (when exception-handler
           (reify java.lang.Thread$UncaughtExceptionHandler
             (uncaughtException [_ thread exception] (exception-handler thread exception))))]
-    (ForkJoinPool.
-     parallelism
-     factory
-     exception-handler
-     (boolean async-mode)
-     (int (or min-size 0))
-     (int (or max-size 32768))
-     (int (or min-runnable 1))
-     saturate
-     (or keep-alive-seconds 60)
-     TimeUnit/SECONDS)))
+    (let [pool (ForkJoinPool.
+                parallelism
+                factory
+                exception-handler
+                (boolean async-mode)
+                (int (or min-size 0))
+                (int (or max-size 32768))
+                (int (or min-runnable 1))
+                saturate
+                (or keep-alive-seconds 60)
+                TimeUnit/SECONDS)]
+      (when max-compensation
+        (BlockingCall/setMaxCompensation pool (int max-compensation)))
+      pool)))
 
 
 (defonce ^:dynamic
@@ -106,6 +111,53 @@
     :async-mode true}))
 
 
+(defn priority-executor
+  "Wraps an executor (`*executor*` by default) with priority lanes.
+   Knitty yanks with the `:priority` option run on such executor prefer more urgent tasks,
+   other tasks get the `default-priority` (0 by default)."
+  (^PriorityExecutor []
+   (priority-executor *executor*))
+  (^PriorityExecutor [executor]
+   (PriorityExecutor. executor))
+  (^PriorityExecutor [executor default-priority]
+   (PriorityExecutor. executor (int default-priority))))
+
+
+(defn blocking-stats
+  "Returns counters of blocking yarns run on a ForkJoinPool (`*executor*` by default):
+   number of calls run via `ForkJoinPool/managedBlock`, so the pool may compensate the blocked worker
+   with a spare thread (`:managed`), calls run directly as the cap was reached (`:direct`)
+   and currently running calls (`:active`). Returns nil when the executor is not a ForkJoinPool."
+  ([]
+   (blocking-stats *executor*))
+  ([pool]
+   (when (instance? ForkJoinPool pool)
+     (BlockingCall/stats pool))))
+
+
+(defn virtual-executor
+  "Returns an executor, which runs every task on a new virtual thread (requires Java 21+).
+   Knitty yanks on such executor may call blocking code from yarns without starving a thread pool."
+  ^VirtualExecutor []
+  (VirtualExecutor/getInstance))
+
+
+(defn virtual-threads-supported?
+  "Returns true when virtual threads are supported by the current JVM."
+  []
+  (VirtualExecutor/isSupported))
+
+
+(defn bulkhead
+  "Wraps an executor (`*executor*` by default) with a concurrency limit,
+   tasks over the limit wait in an unbounded queue.
+   Use `knitty.core/register-executor!` to route yarns with the `:executor` option to a bulkhead."
+  (^Bulkhead [max-concurrency]
+   (bulkhead *executor* max-concurrency))
+  (^Bulkhead [executor max-concurrency]
+   (Bulkhead. executor (int max-concurrency))))
+
+
 (defonce ^:dynamic
   ^ScheduledExecutorService *sched-executor*
   (let* [self (promise)
@@ -129,6 +181,60 @@
 (knitty.javaimpl.KDeferred/setExecutorProviderFn
  (fn get-executor [] *executor*))
 
+
+(defn set-listeners-fanout!
+  "Sets a global dispatch policy for deferreds with many listeners.
+   When such deferred is realized on a worker of `*executor*` ForkJoinPool and has at least `threshold` listeners,
+   they are split into chunks of `chunk-size` (16 by default) and notified in parallel on that pool.
+   So dependents of a wide 'hub' yarn start on all cores at once. Deferreds realized on other threads
+   notify listeners inline. Zero `threshold` disables parallel dispatch."
+  ([threshold]
+   (set-listeners-fanout! threshold 16))
+  ([threshold chunk-size]
+   (KDeferred/setListenersFanout (int threshold) (int chunk-size))))
+
+(defn set-deref-spins!
+  "Sets number of spins a blocking `deref` of an unrealized deferred busy-waits before parking the thread
+   (256 by default, may be set by `knitty.deref-spins` system property). Zero disables spinning."
+  [spins]
+  (KDeferred/setDerefSpins (int spins)))
+
+(defn deref-spins
+  "Returns current number of spins a blocking `deref` busy-waits, see `set-deref-spins!`."
+  []
+  (KDeferred/getDerefSpins))
+
+(defn set-fan-in-threshold!
+  "Sets minimal size of a collection (4096 by default, may be set by `knitty.fan-in-threshold` system property),
+   which `zip*` and `zip` await via chunked counters: completions contend on a counter per chunk
+   of 1024 deferreds instead of a single shared one. Zero disables chunked awaiting."
+  [threshold]
+  (KAwaiter/setFanInThreshold (int threshold)))
+
+(defn fan-in-threshold
+  "Returns current minimal size of a collection awaited via chunked counters, see `set-fan-in-threshold!`."
+  []
+  (KAwaiter/getFanInThreshold))
+
+(defn set-error-leak-detection!
+  "Configures detection of errored deferreds, which are garbage collected with an unconsumed error.
+   Options:
+   - `:mode`              `:full` (track every errored deferred, default), `:sampled` or `:off`.
+   - `:sample-rate`       Tracks 1 of `sample-rate` errored deferreds in `:sampled` mode (default 100).
+   - `:max-logs-per-sec`  Rate limit for leak warnings, suppressed warnings are aggregated by error class
+                          and reported later (default 0 - unlimited).
+   Defaults may also be set via system properties `knitty.error-leak-detection`,
+   `knitty.error-leak-sample-rate` and `knitty.error-leak-max-logs-per-sec`."
+  [{:keys [mode sample-rate max-logs-per-sec]
+    :or {mode :full, sample-rate 100, max-logs-per-sec 0}}]
+  (LeakDetector/configure mode (int sample-rate) (int max-logs-per-sec)))
+
+(defn error-leak-stats
+  "Returns current leak detection options and counters:
+   `:tracked` errored deferreds, `:leaked` errors and `:suppressed` warnings."
+  []
+  (LeakDetector/stats))
+
 ;; ==
 
 (defn create
@@ -265,6 +371,20 @@
   ([x on-ok on-err]
    (.listen (wrap x) on-ok on-err)))
 
+(defn subscribe!
+  "Registers 1-arg callbacks to run when deferred is realized, like `listen!`.
+   Returns a handle, which may be passed to `unsubscribe!` to cancel the callbacks in O(1).
+   Prefer it over `manifold.deferred/cancel-listener!` for long-lived deferreds with many listeners."
+  ^knitty.javaimpl.KDeferred$ListenerHandle
+  [x on-ok on-err]
+  (.listenCancellable (wrap x) on-ok on-err))
+
+(defn unsubscribe!
+  "Cancels callbacks registered by `subscribe!`.
+   Returns `true` when callbacks are cancelled, `false` when they are already called."
+  [^knitty.javaimpl.KDeferred$ListenerHandle handle]
+  (.cancel handle))
+
 (defn bind
   "Bind 1-arg callbacks fn to deferred. Returns new deferred with amended value.
    Fn `val-fn` takes single arugment with unwrapped value and may return a new value,
@@ -580,6 +700,40 @@
           (areduce z i ret (transient xg)
                    (conj! ret (.getRaw ^KDeferred (aget z i)))))))))))
 
+(defn as-completed
+  "Returns realized deferreds from `ds` (values are wrapped) in completion order.
+
+   With one argument returns a lazy (non-chunked) seq, realizing the next element blocks
+   until one more deferred is realized.
+
+   With `on-next` callback it is called with each realized deferred, calls are never concurrent.
+   When `on-next` returns a deferred, the next call waits until it is realized - so a slow consumer
+   applies backpressure, e.g. `(as-completed ds #(manifold.stream/put! s @%))`.
+   Returns a deferred with number of consumed deferreds, failed with the first error of `on-next`.
+   Realizing the returned deferred stops the delivery."
+  ([ds]
+   (let [ac (AsCompleted/start (iterator ds))]
+     (letfn [(step []
+               (lazy-seq
+                (when (.hasNext ac)
+                  (cons (.next ac) (step)))))]
+       (step))))
+  (^KDeferred [ds on-next]
+   (.consume (AsCompleted/start (iterator ds)) on-next)))
+
+(defn map-concurrent
+  "Calls `f` for each element of `xs`, keeping at most `n` returned deferreds unrealized at a time.
+   Returns a deferred with a vector of results in order of `xs`.
+   The first error (thrown or returned as a failed deferred) fails the result,
+   no more elements are consumed and results still in flight are revoked."
+  ^KDeferred [n f xs]
+  (MapConcurrent/map f (iterator xs) (int n) true))
+
+(defn map-concurrent-unordered
+  "Same as `map-concurrent`, but results are in completion order."
+  ^KDeferred [n f xs]
+  (MapConcurrent/map f (iterator xs) (int n) false))
+
 (def ^:private ^java.util.Random alt-rnd
   (java.util.Random.))
 
@@ -774,6 +928,12 @@
   ([value time-ms]
    (time-in time-ms (create) #(connect (wrap value) %))))
 
+(defn on-timeout
+  "Calls `(f d)` when the deferred is not realized within the specified delay (in milliseconds).
+   Returns the deferred."
+  [d ^double delay f]
+  (time-in delay d f))
+
 (def timeout-exception
   (doto (java.util.concurrent.TimeoutException. "timeout")
     (.setStackTrace (make-array StackTraceElement 0))))
@@ -5,10 +5,16 @@
             [knitty.trace :as t])
   (:import [clojure.lang AFn]
            [java.util Arrays]
+           [java.util.concurrent ConcurrentHashMap]
            [knitty.javaimpl
+            BlockingCall
+            ExecutionPool
             KDeferred
             KwMapper
+            Singleflight
             YankCtx
+            YarnCache
+            YarnCost
             YarnProvider]))
 
 
@@ -81,11 +87,20 @@
   (Arrays/copyOf arr (alength arr)))
 
 
-(deftype Registry [ycache asmap all-deps]
+(deftype Registry [ycache asmap all-deps ^ConcurrentHashMap caches ^ConcurrentHashMap flights admission]
 
   YarnProvider
   (yarn [_ kkw] (get asmap kkw))
   (ycache [_] ycache)
+  (yarnCache [_ kkw max-size ttl-ms]
+    (or (.get caches kkw)
+        (let [c (YarnCache. max-size ttl-ms)]
+          (or (.putIfAbsent caches kkw c) c))))
+  (singleflight [_ kkw]
+    (or (.get flights kkw)
+        (let [f (Singleflight.)]
+          (or (.putIfAbsent flights kkw f) f))))
+  (admissionControl [_] admission)
 
   clojure.lang.Seqable
   (seq [_] (seq asmap))
@@ -94,7 +109,7 @@
   (count [_] (count asmap))
   (cons [t x] (.assoc t (yarn-key x) x))
   (equiv [_ o] (and (instance? Registry o) (= asmap (.-asmap ^Registry o))))
-  (empty [_] (Registry. (make-array AFn 32) {} {}))
+  (empty [_] (Registry. (make-array AFn 32) {} {} (ConcurrentHashMap.) (ConcurrentHashMap.) admission))
 
   clojure.lang.ILookup
   (valAt [_ k] (asmap k))
@@ -122,16 +137,79 @@
         (doseq [d deps]
           (detect-and-throw-yarn-cycle! k d [k] asmap)))
 
-      (let [^objects ycache' (if (contains? asmap k)
+      (let [redefined (contains? asmap k)
+            ^objects ycache' (if redefined
                                (array-copy ycache)                      ;; redefined yarn
                                (ensure-array-len ycache (inc max-idx))  ;; new yarn - reuse cache
                                )]
         (YankCtx/putYarnIntoCache ycache' i v)
-        (Registry. ycache' (assoc asmap k v) all-deps')))))
+        (if redefined
+          ;; values of the yarn and its dependents may differ now (e.g. mocked yarns),
+          ;; so caches and in-flight computations are not shared with the original registry
+          (Registry. ycache' (assoc asmap k v) all-deps' (ConcurrentHashMap.) (ConcurrentHashMap.) admission)
+          (Registry. ycache' (assoc asmap k v) all-deps' caches flights admission))))))
 
 
 (defn create-registry []
-  (Registry. (make-array AFn 32) {} {}))
+  (Registry. (make-array AFn 32) {} {} (ConcurrentHashMap.) (ConcurrentHashMap.) nil))
+
+
+(defn with-admission-control
+  "Returns a copy of the registry, which limits concurrent yanks by the admission control (or nil)."
+  [^Registry registry admission]
+  (Registry. (.-ycache registry) (.-asmap registry) (.-all-deps registry)
+             (.-caches registry) (.-flights registry) admission))
+
+
+(defn yarn-caches
+  "Returns a map of yarn caches (see `:cache` yarn option) owned by the registry."
+  [registry]
+  (if (instance? Registry registry)
+    (into {} (.-caches ^Registry registry))
+    {}))
+
+
+(defn yarn-singleflights
+  "Returns a map of in-flight coalescing groups (see `:coalesce` yarn option) owned by the registry."
+  [registry]
+  (if (instance? Registry registry)
+    (into {} (.-flights ^Registry registry))
+    {}))
+
+
+(defn yarns-closure
+  "Returns a set of keys of `yarns` and all of their transitive dependencies."
+  [registry yarns]
+  (let [all-deps (if (instance? Registry registry) (.-all-deps ^Registry registry) {})
+        step (fn step [acc k]
+               (if (contains? acc k)
+                 acc
+                 (let [acc (conj acc k)]
+                   (if-some [ds (all-deps k)]
+                     (into acc ds)
+                     (reduce step acc (some-> (get registry k) (yarn-deps)))))))]
+    (reduce
+     (fn [acc y]
+       (if (keyword? y)
+         (step acc y)
+         (reduce step (conj acc (yarn-key y)) (yarn-deps y))))
+     #{}
+     yarns)))
+
+
+(defn depends-on-fn
+  "Returns a predicate, which checks whether a yarn is one of `ks` or transitively depends on any of them.
+   Yarns with unknown dependencies are treated as dependent."
+  [registry ks]
+  (let [ks (set ks)
+        all-deps (if (instance? Registry registry)
+                   (.-all-deps ^Registry registry)
+                   (fn [k] (when (get registry k) (disj (yarns-closure registry [k]) k))))]
+    (fn [k]
+      (or (contains? ks k)
+          (if-some [ds (all-deps k)]
+            (boolean (some #(contains? ds %) ks))
+            true)))))
 
 
 (defn bind-param-type [ds]
@@ -147,6 +225,16 @@
       :else  :sync)))
 
 
+(defn prim-tag
+  "Returns `long` or `double` when symbol `s` is hinted with a primitive type."
+  [s]
+  (#{'long 'double} (:tag (meta s))))
+
+
+(defn- prim-untag [s]
+  (cond-> s (prim-tag s) (vary-meta dissoc :tag)))
+
+
 (defmacro tracer-> [yctx f & args]
   `(t/if-tracing
     (when-some [^knitty.trace.Tracer t# (.-tracer ~yctx)]
@@ -232,6 +320,26 @@
   `(.run (.pool ~ctx) (fn* ^:once [] ~@body)))
 
 
+(defmacro do-fork-on [pool & body]
+  `(.fork ~pool (fn* ^:once [] ~@body)))
+
+
+(defmacro do-auto-fork [ctx cost & body]
+  `(let [f# (fn* ^:once [] ~@body)]
+     (if (.shouldFork ~cost)
+       (.fork (.pool ~ctx) f#)
+       (f#))))
+
+
+(defmacro with-named-pool [pool yctx executor on-err & body]
+  (if pool
+    `(when-some [~pool (try
+                         (.namedPool ~yctx ~executor)
+                         (catch Throwable e# (~on-err e#) nil))]
+       ~@body)
+    `(do ~@body)))
+
+
 (defmacro yarn-get-fork [yk ykey yctx]
   `(let [d# (.pull ~yctx ~(KwMapper/registerKeyword ykey))]
      (when-not (.owned d#)
@@ -239,19 +347,22 @@
      d#))
 
 
-(defmacro connect-result [yctx ykey result dest]
-  `(if (kd/deferred? ~result)
-     (kd/listen!
-      ~result
-      (fn ~'on-val [x#]
-        (tracer-> ~yctx .traceFinish ~ykey x# nil true)
-        (pool-run ~yctx (.fireValue ~dest x# (.-token ~yctx))))
-      (fn ~'on-err [e#]
-        (tracer-> ~yctx .traceFinish ~ykey nil e# true)
-        (pool-run ~yctx (.fireError ~dest e# (.-token ~yctx)))))
-     (do
-       (tracer-> ~yctx .traceFinish ~ykey ~result nil false)
-       (.fireValue ~dest ~result (.-token ~yctx)))))
+(defmacro connect-result
+  ([yctx ykey result dest]
+   `(connect-result ~yctx (.pool ~yctx) ~ykey ~result ~dest))
+  ([yctx pool ykey result dest]
+   `(if (kd/deferred? ~result)
+      (kd/listen!
+       ~result
+       (fn ~'on-val [x#]
+         (tracer-> ~yctx .traceFinish ~ykey x# nil true)
+         (.run ~pool (fn* ^:once [] (.fireValue ~dest x# (.-token ~yctx)))))
+       (fn ~'on-err [e#]
+         (tracer-> ~yctx .traceFinish ~ykey nil e# true)
+         (.run ~pool (fn* ^:once [] (.fireError ~dest e# (.-token ~yctx))))))
+      (do
+        (tracer-> ~yctx .traceFinish ~ykey ~result nil false)
+        (.fireValue ~dest ~result (.-token ~yctx))))))
 
 
 (defmacro connect-error [yctx ykey error dest]
@@ -260,15 +371,107 @@
      (.fireError ~dest ~error (.-token ~yctx))))
 
 
+(defmacro cache-result [cache k result]
+  `(if (kd/deferred? ~result)
+     (kd/listen! ~result (fn [x#] (.put ~cache ~k x#)) (fn [_#]))
+     (.put ~cache ~k ~result)))
+
+
+(defn yarn-timeout!
+  "Fails yarn deferred `d` if the async `result` is not realized within `timeout` milliseconds."
+  [^YankCtx yctx ykey result ^KDeferred d timeout]
+  (when (and (kd/deferred? result) (not (.realized (kd/wrap result))))
+    (kd/on-timeout
+     d timeout
+     (fn [^KDeferred d]
+       (.fireError d
+                   (java.util.concurrent.TimeoutException. (str "yarn " ykey " timed out"))
+                   (.-token yctx))))))
+
+
+(defn- emit-yarn-call
+  [the-fn-body ykey bind yarn-meta coerce-deferred yctx pool cost dest]
+  (let [{:keys [cache coalesce cache-key timeout blocking]} yarn-meta
+        ;; primitive yarns are always sync, the value is computed unboxed and passed to `fireLong` / `fireDouble`
+        prim (#{'long 'double} (:tag yarn-meta))
+        ;; async results of cached or coalesced yarns may be shared between yanks
+        revoke-result (not (or cache coalesce))
+        ck (if cache-key
+             `(~cache-key ~(into {} (for [[ds dk] bind] [dk ds])))
+             (mapv first bind))
+
+        call
+        `(do
+           (tracer-> ~yctx .traceCall ~ykey)
+           (~(if prim (symbol "clojure.core" (name prim)) coerce-deferred)
+            ~(if blocking
+               `(BlockingCall/call (fn* ^:once [] ~the-fn-body))
+               the-fn-body)))
+
+        call
+        (if-not cost
+          call
+          `(let [t# (System/nanoTime)
+                 z# ~call]
+             (.record ~cost (unchecked-subtract (System/nanoTime) t#))
+             z#))
+
+        call
+        (if-not coalesce
+          call
+          `(if-some [^Singleflight f# (.singleflight ~yctx ~ykey)]
+             (let [k# ~ck]
+               (if-some [p# (.follow f# k#)]
+                 p#
+                 (let [s# (KDeferred/create)
+                       p# (.join f# k# s#)]
+                   (if (identical? p# s#)
+                     (let [z# (try ~call (catch Throwable e# (.fireError s# e#) (throw e#)))]
+                       (.chain s# z#)
+                       z#)
+                     p#))))
+             ~call))
+
+        call
+        (if-not cache
+          call
+          (let [{:keys [max-size ttl-ms] :or {max-size 1024, ttl-ms 0}} (when (map? cache) cache)]
+            `(if-some [^YarnCache c# (.yarnCache ~yctx ~ykey (long ~max-size) (long ~ttl-ms))]
+               (let [k# ~ck
+                     v# (.get c# k#)]
+                 (if (identical? v# YarnCache/NONE)
+                   (let [z# ~call]
+                     (cache-result c# k# z#)
+                     z#)
+                   v#))
+               ~call)))]
+
+    (when (and prim (or cache coalesce))
+      (throw (ex-info "primitive yarn may not be cached or coalesced" {:knitty/yarn ykey})))
+
+    (let [z (gensym "z")]
+      (if prim
+        `(let [~z ~call]
+           (tracer-> ~yctx .traceFinish ~ykey ~z nil false)
+           (~(if (= 'long prim) '.fireLong '.fireDouble) ~dest ~z (.-token ~yctx)))
+        `(let [~z ~call]
+           ~@(when timeout
+               [`(yarn-timeout! ~yctx ~ykey ~z ~dest (double ~timeout))])
+           ~@(when revoke-result
+               [`(when (kd/deferred? ~z) (YankCtx/cancelOnRevoke ~dest ~z))])
+           (connect-result ~yctx ~@(when pool [pool]) ~ykey ~z ~dest))))))
+
+
 (defn emit-yarn-impl
   [the-fn-body ykey bind yarn-meta deps]
-  (let [{:keys [fork]} yarn-meta
+  (let [{:keys [fork cache coalesce executor]} yarn-meta
+        executor (when (keyword? executor) executor)
         yctx '__yank_ctx
 
         yank-deps
         (mapcat identity
                 (for [[ds dk] bind]
-                  [ds
+                  [(prim-untag ds)
                    (case (bind-param-type ds)
                      :sync       `(yarn-get-impl   ~ykey ~dk ~yctx)
                      :defer      `(yarn-get-impl   ~ykey ~dk ~yctx)
@@ -281,7 +484,7 @@
         sync-deps
         (for [[ds _dk] bind
               :when (#{:sync :fork-sync} (bind-param-type ds))]
-          ds)
+          (prim-untag ds))
 
         param-types (set (for [[ds _dk] bind] (let [p (bind-param-type ds)]
                                                 (get {:fork-defer :defer, :fork-sync :sync} p p))))
@@ -294,7 +497,11 @@
         (mapcat identity
                 (for [[ds _dk] bind
                       :when (#{:sync :fork-sync} (bind-param-type ds))]
-                  [ds `(.getRaw ~ds)]))
+                  (let [d (prim-untag ds)]
+                    [d (case (prim-tag ds)
+                         long   `(.getLong ~d)
+                         double `(.getDouble ~d)
+                         `(.getRaw ~d))])))
 
         all-deps-tr (into
                      []
@@ -305,38 +512,49 @@
                          (for [[_ k] dk] [k :case])
                          [[dk pt]])))
 
-        do-maybe-fork (if fork [`do-pool-fork yctx] [`do])
+        pool (when executor (vary-meta (gensym "pool") assoc :tag `ExecutionPool))
+        cost (when (and (= :auto fork) (not executor)) (vary-meta (gensym "cost") assoc :tag `YarnCost))
+        do-maybe-fork (cond
+                        executor [`do-fork-on pool]
+                        cost [`do-auto-fork yctx cost]
+                        fork [`do-pool-fork yctx]
+                        :else [`do])
+
+        dest (gensym "d")
+        call-yarn (emit-yarn-call the-fn-body ykey bind yarn-meta coerce-deferred yctx pool cost dest)
         ;;
         ]
 
-    `(decl-yarn
-      ~ykey
-      ~(set deps)
-      (fn [~yctx ^KDeferred d#]
-        (tracer-> ~yctx .traceStart ~ykey :yarn ~all-deps-tr)
-        (~@do-maybe-fork
-         (try
-           (let [~@yank-deps]
-             (if (kd/kd-succeeded? ~@sync-deps)
-               (let [~@deref-syncs]
-                 (tracer-> ~yctx .traceCall ~ykey)
-                 (let [z# (~coerce-deferred ~the-fn-body)]
-                   (connect-result ~yctx ~ykey z# d#)))
-               (kd/kd-await!
-                (fn
-                  ([]
-                   (try
-                     (let [~@deref-syncs]
-                       (tracer-> ~yctx .traceCall ~ykey)
-                       (let [z# (~coerce-deferred ~the-fn-body)]
-                         (connect-result ~yctx ~ykey z# d#)))
-                     (catch Throwable e#
-                       (connect-error ~yctx ~ykey e# d#))))
-                  ([e#]
-                   (connect-error ~yctx ~ykey e# d#)))
-                ~@sync-deps)))
-           (catch Throwable e#
-             (connect-error ~yctx ~ykey e# d#))))))))
+    (when (and (or cache coalesce) (not-every? #{:sync :fork-sync} (map (comp bind-param-type first) bind)))
+      (throw (ex-info "cached or coalesced yarn may have only sync dependencies" {:knitty/yarn ykey})))
+
+    (cond->>
+     `(decl-yarn
+       ~ykey
+       ~(set deps)
+       (fn [~yctx ~(vary-meta dest assoc :tag `KDeferred)]
+         (tracer-> ~yctx .traceStart ~ykey :yarn ~all-deps-tr)
+         (with-named-pool ~pool ~yctx ~executor (fn* [e#] (connect-error ~yctx ~ykey e# ~dest))
+          (~@do-maybe-fork
+          (try
+            (let [~@yank-deps]
+              (if (kd/kd-succeeded? ~@sync-deps)
+                (let [~@deref-syncs]
+                  ~call-yarn)
+                (kd/kd-await!
+                 (fn
+                   ([]
+                    (try
+                      (let [~@deref-syncs]
+                        ~call-yarn)
+                      (catch Throwable e#
+                        (connect-error ~yctx ~ykey e# ~dest))))
+                   ([e#]
+                    (connect-error ~yctx ~ykey e# ~dest)))
+                 ~@sync-deps)))
+            (catch Throwable e#
+              (connect-error ~yctx ~ykey e# ~dest)))))))
+      cost (list `let [cost `(YarnCost/forYarn ~ykey)]))))
 
 
 (defn- grab-yarn-bindmap-deps [bm]
@@ -37,6 +37,21 @@
    (if elide-tracing? notrace-body trace-body)))
 
 
+(def elide-pool-stats?
+  (boolean
+   (some->
+    (parse-bool-flag "env:KNITTY_ELIDE_POOL_STATS" (System/getenv "KNITTY_ELIDE_POOL_STATS"))
+    (or (parse-bool-flag "property:knitty.elide-pool-stats" (System/getProperty "knitty.elide-pool-stats"))))))
+
+
+(defmacro if-pool-stats
+  "Evaluates `stats-body` if executor pool statistics are enabled; otherwise, evaluates `nostats-body` if provided."
+  ([stats-body]
+   (when-not elide-pool-stats? stats-body))
+  ([stats-body nostats-body]
+   (if elide-pool-stats? nostats-body stats-body)))
+
+
 (definterface
   ^{:doc
     "Tracer defines the interface for capturing and processing yarn execution traces."}
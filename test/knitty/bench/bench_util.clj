@@ -305,6 +305,17 @@
   [& body]
   `(kd/future-with ~'__knitty__test_util__md_executor ~@body))
 
+(defn allocated-bytes ^long []
+  ;; work may run on pool threads, so count allocations of all live threads
+  (let [^com.sun.management.ThreadMXBean mx (java.lang.management.ManagementFactory/getThreadMXBean)]
+    (reduce + (.getThreadAllocatedBytes mx (.getAllThreadIds mx)))))
+
+(defn allocated-bytes-per-call ^long [f ^long n]
+  (dotimes [_ n] (f))
+  (let [b0 (allocated-bytes)]
+    (dotimes [_ n] (f))
+    (quot (- (allocated-bytes) b0) n)))
+
 (defmacro apply-replicate-arg [f n & args]
   (let [f (if (seq? f) f [f])]
     `(~@f ~@(take n (cycle args)))))
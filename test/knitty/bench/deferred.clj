@@ -321,5 +321,72 @@
    :knitty (kd/create)))
 
 
+;; value is delivered by another thread, so deref has to wait for it
+(defonce ^:private ^java.util.concurrent.ExecutorService deliver-executor
+  (java.util.concurrent.Executors/newSingleThreadExecutor))
+
+(defmacro ^:private deref-delivered [create-d deref-form]
+  `(let [d# ~create-d]
+     (.execute deliver-executor #(md/success! d# 1))
+     (~@deref-form d#)))
+
+
+(deftest ^:benchmark bench-blocking-deref
+  (tmpl/do-template
+   [t create-d]
+   (testing t
+     (bench-suite
+      (bench :deref (deref-delivered create-d [deref]))
+      (bench :deref-timeout (deref-delivered create-d [(fn [d] (deref d 1000 nil))]))
+      (when (= :knitty t)
+        (let [spins (kd/deref-spins)]
+          (try
+            (kd/set-deref-spins! 0)
+            (bench :deref-park (deref-delivered create-d [deref]))
+            (finally
+              (kd/set-deref-spins! spins))))))
+     (doseq [[n f] [[:deref #(deref-delivered create-d [deref])]
+                    [:deref-timeout #(deref-delivered create-d [(fn [d] (deref d 1000 nil))])]]]
+       (println (format "  %s %-16s %6d bytes/op" t n (bu/allocated-bytes-per-call f 100000)))))
+
+   :manifold (md/deferred nil)
+   :knitty (kd/create)))
+
+
+;; listeners are added and cancelled by 4 threads on a long-lived deferred with 1000 active listeners
+(defn- listeners-churn [n add-and-cancel]
+  (let [d (kd/create)]
+    (dotimes [_ 1000] (kd/listen! d identity identity))
+    @(kd/zip* (for [_ (range 4)]
+                (kd/future (dotimes [_ (quot n 4)] (add-and-cancel d)))))
+    (kd/success! d 1)))
+
+
+(deftest ^:benchmark bench-listeners-churn
+  (bench-suite
+   (doseq [n [1000 10000 100000]]
+     (testing n
+       (bench :subscribe
+              (listeners-churn n #(kd/unsubscribe! (kd/subscribe! % identity identity))))
+       (let [ls (md/listener identity identity)]
+         (bench :cancel-listener
+                (listeners-churn n #(do (md/add-listener! % ls) (md/cancel-listener! % ls)))))))))
+
+
+;; every element is an async operation, realized by `with-defer` in random order
+(deftest ^:benchmark bench-map-concurrent
+  (bench-suite
+   (doseq [n [100 10000]]
+     (testing n
+       (let [xs (vec (range n))]
+         (bench :zip* @(with-defer (kd/zip* (mapv #(knitty-ff %) xs))))
+         (bench :md-zip @(with-defer (apply md/zip (mapv #(manifold-ff %) xs))))
+         (doseq [c [16 256]]
+           (testing c
+             (bench :map-concurrent
+                    @(with-defer (kd/map-concurrent c #(knitty-ff %) xs)))
+             (bench :map-concurrent-unordered
+                    @(with-defer (kd/map-concurrent-unordered c #(knitty-ff %) xs))))))))))
+
 (comment
   (clojure.test/test-ns *ns*))
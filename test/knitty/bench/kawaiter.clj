@@ -41,5 +41,28 @@
     (for [x (range 25)] [(keyword (str "kd-await-x" x)) x]))))
 
 
+;; deferreds are realized by 4 threads concurrently, after all of them are awaited
+(defn- fan-in [^long n]
+  (let [ds (vec (repeatedly n kd/create))
+        r (kd/zip* ds)
+        step (quot (+ n 3) 4)]
+    @(kd/zip* (for [p (partition-all step ds)]
+                (kd/future (run! #(kd/success! % 0) p))))
+    @r))
+
+
+(deftest ^:benchmark benchmark-fan-in
+  (let [threshold0 (kd/fan-in-threshold)]
+    (try
+      (bu/bench-suite
+       (doseq [[t threshold] [[:kawaiter 0] [:fan-in 1]]
+               n [1000 100000 1000000]]
+         (t/testing t
+           (kd/set-fan-in-threshold! threshold)
+           (bu/bench (keyword (str "zip-x" n)) (fan-in n)))))
+      (finally
+        (kd/set-fan-in-threshold! threshold0)))))
+
+
 (comment
   (clojure.test/test-ns *ns*))
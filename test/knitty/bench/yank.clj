@@ -22,7 +22,7 @@
 
 
 (defn compile-yarn-graph*
-  [ns prefix ids deps-fn emit-body-fn fork?]
+  [ns prefix ids deps-fn emit-body-fn fork? tag]
   (let [n (create-ns ns)]
     (binding [*ns* n]
       (mapv var-get
@@ -35,20 +35,22 @@
                                  {t true}))
                              (symbol (str prefix %)))
                      node-xxxx (cond-> (nsym i)
-                                 (fork? i) (vary-meta assoc :fork true))
-                     deps (map nsym (deps-fn i))]
+                                 (fork? i) (vary-meta assoc :fork (fork? i))
+                                 tag (vary-meta assoc :tag tag))
+                     deps (map (cond->> nsym tag (comp #(vary-meta % assoc :tag tag)))
+                               (deps-fn i))]
                  `(kt/defyarn ~node-xxxx
                     ~(zipmap deps (map (fn [s] (keyword (name ns) (name s))) deps))
                     ~(apply emit-body-fn i deps)))))))))
 
 
 (defmacro build-yarns-graph
-  [& {:keys [prefix ids deps emit-body fork?]
+  [& {:keys [prefix ids deps emit-body fork? tag]
       :or {prefix "node"
            emit-body (fn [i & _] i)
            fork? `(constantly false)}}]
   (let [g (ns-name *ns*)]
-    `(compile-yarn-graph* '~g (name ~prefix) ~ids ~deps ~emit-body ~fork?)))
+    `(compile-yarn-graph* '~g (name ~prefix) ~ids ~deps ~emit-body ~fork? ~tag)))
 
 
 (defmacro nodes-range
@@ -159,6 +161,141 @@
    (run-benchs (nodes-range :node 200))))
 
 
+(deftest ^:benchmark batch-vs-separate-yanks
+  (bench-suite
+   (build-yarns-graph
+    :ids (range 50)
+    :prefix :node
+    :deps exp-sync-deps
+    :emit-body (fn [i & xs] `(reduce unchecked-add ~i [~@xs])))
+   (let [ls (last (nodes-range :node 50))
+         p (kt/compile-plan [ls])]
+     (doseq [n [10 100 1000]]
+       (testing n
+         (let [ins (mapv #(hash-map ::node0 %) (range n))]
+           (bench :yank-n
+                  @(kd/zip* (map #(yank* % [ls]) ins)))
+           (bench :yank-plan-n
+                  @(kd/zip* (map #(kt/yank-plan* % p) ins)))
+           (bench :yank-batch
+                  @(kt/yank-batch* ins [ls]))
+           (bench :yank-batch-plan
+                  @(kt/yank-batch* ins p))))))))
+
+
+(deftest ^:benchmark blocking-yarns-by-executor
+  (bench-suite
+   (doseq [[nb every] [[:nonblocking 0] [:mixed 10] [:blocking 1]]]
+     (testing nb
+       (build-yarns-graph
+        :ids (range 50)
+        :prefix :node
+        :deps exp-sync-deps
+        :emit-body (fn [i & xs]
+                     `(do
+                        ~@(when (and (pos? every) (zero? (mod i every)))
+                            [`(Thread/sleep 1)])
+                        (reduce unchecked-add ~i [~@xs]))))
+       (let [ls (last (nodes-range :node 50))]
+         (bench :fjp
+                @(kd/zip* (repeatedly 16 #(yank1 {} ls))))
+         (when (kd/virtual-threads-supported?)
+           (let [ve (kd/virtual-executor)]
+             (bench :virtual
+                    @(kd/zip* (repeatedly 16 #(yank1 {} ls {:executor ve})))))))))))
+
+
+(deftest ^:benchmark deep-chain-by-inline-depth
+  (bench-suite
+   (build-yarns-graph
+    :ids (range 500)
+    :prefix :node
+    :deps #(when (pos? %) [[:defer (dec %)]])
+    :emit-body (fn [i & [x]]
+                 (if x
+                   `(kd/bind ~x unchecked-inc)
+                   `(kd/future ~i))))
+   (let [ls (last (nodes-range :node 500))
+         old (kt/set-max-inline-depth! 0)]
+     (try
+       (doseq [d [0 8 32 128]]
+         (kt/set-max-inline-depth! d)
+         (bench d @(yank1 {} ls)))
+       (finally
+         (kt/set-max-inline-depth! old))))))
+
+
+(deftest ^:benchmark wide-fanout-by-dispatch
+  (bench-suite
+   (build-yarns-graph
+    :ids (range 257)
+    :prefix :node
+    :deps #(when (pos? %) [0])
+    :emit-body (fn [i & [x]]
+                 (if x
+                   `(loop [a# (long ~x), k# 0]
+                      (if (< k# 20000) (recur (unchecked-add a# (bit-xor k# ~i)) (unchecked-inc k#)) a#))
+                   `(kd/future ~i))))
+   (let [nodes (nodes-range :node 1 257)]
+     (try
+       (doseq [[p t] [[:sequential 0] [:fanout 32]]]
+         (kd/set-listeners-fanout! t)
+         (bench p @(yank {} nodes)))
+       (finally
+         (kd/set-listeners-fanout! 0))))))
+
+
+(deftest ^:benchmark mixed-cost-by-fork-mode
+  (bench-suite
+   (doseq [[nf fork] [[:inline false] [:fork true] [:auto :auto]]]
+     (testing nf
+       (build-yarns-graph
+        :ids (range 100)
+        :prefix :node
+        :deps exp-sync-deps
+        :fork? (constantly fork)
+        :emit-body (fn [i & xs]
+                     (if (zero? (mod i 10))
+                       `(loop [a# (reduce unchecked-add ~i [~@xs]), k# 0]
+                          (if (< k# 20000) (recur (unchecked-add a# (bit-xor k# ~i)) (unchecked-inc k#)) a#))
+                       `(reduce unchecked-add ~i [~@xs]))))
+       (let [ls (last (nodes-range :node 100))]
+         (bench :yank-16
+                @(kd/zip* (repeatedly 16 #(yank1 {} ls)))))))))
+
+
+;; sums dependencies via `unchecked-add`, so the math is primitive for `^long` yarns
+(defn- emit-sum-body [i & xs]
+  (reduce (fn [a x] `(unchecked-add ~a ~x)) i xs))
+
+
+(deftest ^:benchmark primitive-vs-boxed-yarns
+  (bench-suite
+   (doseq [[nt tag] [[:boxed nil] [:long 'long]]]
+     (testing nt
+       (build-yarns-graph
+        :ids (range 100)
+        :prefix :node
+        :deps exp-sync-deps
+        :tag tag
+        :emit-body emit-sum-body)
+       (let [ls (last (nodes-range :node 100))]
+         (bench :yank1 @(yank1 {} ls)))))))
+
+
+(deftest ^:benchmark primitive-vs-boxed-yarns-allocation
+  (doseq [[nt tag] [[:boxed nil] [:long 'long]]]
+    (build-yarns-graph
+     :ids (range 100)
+     :prefix :node
+     :deps exp-sync-deps
+     :tag tag
+     :emit-body emit-sum-body)
+    (let [ls (last (nodes-range :node 100))]
+      (println (format "  %-8s %8d bytes/yank" nt
+                       (bu/allocated-bytes-per-call #(deref (yank1 {} ls)) 20000))))))
+
+
 (deftest ^:stress check-big-graph
    (build-yarns-graph
     :ids (range 1000)
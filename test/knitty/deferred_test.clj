@@ -523,6 +523,141 @@
                        v' (map random-wrap v)]
                    (is (= (seq v) @(kd/zip* v')))))))
 
+(deftest test-zip-fan-in
+  (testing "large collections"
+    (doseq [n [4096 5000 100000]]
+      (let [v (range n)]
+        (is (= v @(kd/zip* (map random-wrap v))))
+        (is (= v @(kd/zip* (map #(md/success-deferred % nil) v)))))))
+
+  (testing "pending deferreds"
+    (let [ds (vec (repeatedly 5000 kd/create))
+          r (kd/zip* ds)]
+      (doseq [[i d] (shuffle (map-indexed vector ds))]
+        (is (not (realized? r)))
+        (kd/success! d i))
+      (is (= (range 5000) @r))))
+
+  (testing "first error fails fan-in"
+    (let [ds (vec (repeatedly 5000 kd/create))
+          r (kd/zip* ds)]
+      (kd/success! (ds 0) 0)
+      (kd/error! (ds 4000) (ex-info "boom" {}))
+      (is (thrown-with-msg? Exception #"boom" (deref r 1000 nil)))))
+
+  (testing "deferreds after the first error get no listeners"
+    (let [listened (atom 0)
+          pending (reify manifold.deferred.IDeferred
+                    (executor [_] nil)
+                    (realized [_] false)
+                    (onRealized [_ _ _] (swap! listened inc) nil)
+                    (successValue [_ default] default)
+                    (errorValue [_ default] default))
+          ds (concat (repeatedly 100 kd/create) [(kd/wrap-err (ex-info "boom" {}))] (repeat 5000 pending))]
+      (is (thrown-with-msg? Exception #"boom" (deref (kd/zip* ds) 1000 nil)))
+      (is (zero? @listened))))
+
+  (testing "errored deferred stops awaiting"
+    (let [ds (concat [(kd/wrap-err (ex-info "boom" {}))] (repeatedly 5000 kd/create))]
+      (is (thrown-with-msg? Exception #"boom" @(kd/zip* ds))))))
+
+
+(deftest test-as-completed
+  (testing "lazy seq in completion order"
+    (let [ds (vec (repeatedly 5 kd/create))
+          r (kd/as-completed (conj ds 10))]
+      (kd/success! (ds 3) 3)
+      (kd/error! (ds 1) (ex-info "boom" {}))
+      (is (= [10 3] (map deref (take 2 r))))
+      (is (thrown-with-msg? Exception #"boom" @(nth r 2)))
+      (future (Thread/sleep 10) (doseq [i [4 0 2]] (kd/success! (ds i) i)))
+      (is (= [4 0 2] (map deref (drop 3 r))))))
+
+  (testing "callback with backpressure"
+    (let [ds (vec (repeatedly 100 kd/create))
+          active (atom 0)
+          seen (atom [])
+          r (kd/as-completed
+             ds
+             (fn [d]
+               (is (= 1 (swap! active inc)))
+               (swap! seen conj @d)
+               (kd/future (Thread/sleep 1) (swap! active dec))))]
+      (doseq [i (shuffle (range 100))]
+        (kd/success! (ds i) i))
+      (is (= 100 @r))
+      (is (= (set (range 100)) (set @seen)))))
+
+  (testing "callback error stops delivery"
+    (let [ds (vec (repeatedly 10 kd/create))
+          calls (atom 0)
+          r (kd/as-completed ds (fn [_] (when (= 3 (swap! calls inc)) (throw (ex-info "stop" {})))))]
+      (run! #(kd/success! % 1) ds)
+      (is (thrown-with-msg? Exception #"stop" @r))
+      (is (= 3 @calls))))
+
+  (testing "retained deferreds are delivered once realized"
+    (let [d1 (kd/create)
+          d2 (kd/create)
+          _ (.retain ^knitty.javaimpl.KDeferred d1)
+          r (kd/as-completed [d1 d2])]
+      (kd/success! d2 2)
+      (is (= 2 (deref (first r) 1000 ::timeout)))
+      (kd/success! d1 1)
+      (is (= [2 1] (map deref r)))))
+
+  (testing "empty"
+    (is (empty? (kd/as-completed [])))
+    (is (= 0 @(kd/as-completed [] identity)))))
+
+
+(deftest test-map-concurrent
+  (testing "bounded in-flight, ordered results"
+    (let [active (atom 0)
+          peak (atom 0)
+          f (fn [x]
+              (swap! peak max (swap! active inc))
+              (kd/future
+                (Thread/sleep (rand-int 3))
+                (swap! active dec)
+                (* x 2)))]
+      (is (= (mapv #(* % 2) (range 100)) @(kd/map-concurrent 8 f (range 100))))
+      (is (<= 1 @peak 8))))
+
+  (testing "unordered results"
+    (let [ds (vec (repeatedly 5 kd/create))
+          r (kd/map-concurrent-unordered 5 ds (range 5))]
+      (doseq [i [3 1 4 0 2]]
+        (kd/success! (ds i) i))
+      (is (= [3 1 4 0 2] @r))))
+
+  (testing "plain and realized values"
+    (is (= [1 2 3] @(kd/map-concurrent 1 #(if (odd? %) (md/success-deferred %) %) [1 2 3])))
+    (is (= [] @(kd/map-concurrent 4 identity []))))
+
+  (testing "first error stops mapping and revokes in-flight results"
+    (let [ds (vec (repeatedly 10 kd/create))
+          calls (atom 0)
+          r (kd/map-concurrent 3 (fn [i] (swap! calls inc) (ds i)) (range 10))]
+      (kd/error! (ds 1) (ex-info "boom" {}))
+      (is (thrown-with-msg? Exception #"boom" @r))
+      (is (= 3 @calls))
+      (is (thrown? java.util.concurrent.CancellationException @(ds 0)))
+      (is (thrown? java.util.concurrent.CancellationException @(ds 2)))))
+
+  (testing "thrown error"
+    (is (thrown-with-msg? Exception #"oops"
+                          @(kd/map-concurrent 2 #(if (= % 5) (throw (ex-info "oops" {})) %) (range 10)))))
+
+  (testing "lazy seq throws partway through"
+    (let [xs ((fn step [i]
+                (lazy-seq
+                 (when (== i 5) (throw (ex-info "bad seq" {})))
+                 (cons i (step (inc i)))))
+              0)
+          r (kd/map-concurrent 2 #(kd/future %) xs)]
+      (is (thrown-with-msg? Exception #"bad seq" (deref r 1000 ::timeout))))))
+
 (deftest test-error-leak-detection
 
   (letfn [(check-leaked-errors
@@ -556,7 +691,39 @@
     (testing :future
       (check-leaked-errors 1 #(kd/future (throw (Throwable.)))))
     (testing :future-wrap-err
-      (check-leaked-errors 1 #(kd/future (kd/wrap-err (Throwable.)))))))
+      (check-leaked-errors 1 #(kd/future (kd/wrap-err (Throwable.)))))
+
+    (try
+      (testing :off
+        (kd/set-error-leak-detection! {:mode :off})
+        (check-leaked-errors 0 #(kd/wrap-err (Throwable.))))
+      (testing :sampled
+        (kd/set-error-leak-detection! {:mode :sampled, :sample-rate 1})
+        (let [{:keys [tracked leaked]} (kd/error-leak-stats)]
+          (check-leaked-errors 1 #(kd/wrap-err (Throwable.)))
+          (is (= :sampled (:mode (kd/error-leak-stats))))
+          (is (= (+ tracked 100) (:tracked (kd/error-leak-stats))))
+          (is (= (+ leaked 100) (:leaked (kd/error-leak-stats))))))
+      (finally
+        (kd/set-error-leak-detection! {}))))
+
+  (testing "rate limited logging"
+    (let [logs (atom [])]
+      (try
+        (kd/set-error-leak-detection! {:max-logs-per-sec 5})
+        (with-redefs [log/log* (fn [& lm] (swap! logs conj (last lm)))]
+          (let [s0 (:suppressed (kd/error-leak-stats))]
+            (dotimes [_ 100] (kd/wrap-err (Throwable.)))
+            (loop [i 0]
+              (System/gc)
+              (Thread/sleep 10)
+              (when (and (< i 300) (not (some #(re-find #"100 similar|suppressed" (str %)) @logs)))
+                (recur (inc i))))
+            (is (<= (count @logs) 15))
+            (is (some #(re-find #"similar java.lang.Throwable reports were suppressed" (str %)) @logs))
+            (is (< s0 (:suppressed (kd/error-leak-stats))))))
+        (finally
+          (kd/set-error-leak-detection! {}))))))
 
 
 (deftest bench-deferred-await-fjp
@@ -594,5 +761,96 @@
 
 
 
+(def ^:dynamic *fanout-binding* nil)
+
+(deftest test-listeners-fanout
+  (let [pool (kd/build-fork-join-pool {:parallelism 4})]
+    (try
+      (kd/set-listeners-fanout! 8 4)
+      (doseq [[n e] [[3 nil] [100 nil] [100 (ex-info "boom" {})]]]
+        (testing [n (some? e)]
+          (let [d (kd/create)
+                calls (atom [])
+                done (java.util.concurrent.CountDownLatch. n)]
+            (dotimes [i n]
+              (kd/listen! d
+                          (fn [x] (swap! calls conj [i x *fanout-binding*]) (.countDown done))
+                          (fn [x] (swap! calls conj [i (ex-message x) *fanout-binding*]) (.countDown done))))
+            (binding [*fanout-binding* ::bound
+                      kd/*executor* pool]
+              (kd/future-with pool (if e (kd/error! d e) (kd/success! d 1))))
+            (is (.await done 1 java.util.concurrent.TimeUnit/SECONDS))
+            (is (= (set (for [i (range n)] [i (if e "boom" 1) ::bound]))
+                   (set @calls)))
+            (is (= n (count @calls))))))
+      (testing "listeners are notified inline on a pool which is not the default executor"
+        (let [d (kd/create)
+              threads (atom #{})]
+          (dotimes [_ 100]
+            (kd/listen! d (fn [_] (swap! threads conj (Thread/currentThread))) (fn [_])))
+          @(kd/future-with pool (kd/success! d 1) (Thread/currentThread))
+          (is (= 1 (count @threads)))))
+      (finally
+        (kd/set-listeners-fanout! 0)
+        (.shutdown pool)))))
+
+
+(deftest test-blocking-deref
+  (let [spins0 (kd/deref-spins)]
+    (doseq [spins [0 256]]
+      (testing spins
+        (kd/set-deref-spins! spins)
+        (try
+          (let [d (kd/create)]
+            (kd/future (Thread/sleep 5) (kd/success! d 1))
+            (is (= 1 @d)))
+          (let [d (kd/create)]
+            (kd/future (Thread/sleep 5) (kd/error! d (ex-info "boom" {})))
+            (is (thrown-with-msg? Exception #"boom" @d)))
+          (let [d (kd/create)]
+            (is (= ::timeout (deref d 5 ::timeout)))
+            (kd/future (Thread/sleep 5) (kd/success! d 2))
+            (is (= 2 (deref d 1000 ::timeout))))
+          (let [d (kd/create)]
+            (kd/future (Thread/sleep 5) (kd/success! d 3))
+            (is (= 3 (deref d Long/MAX_VALUE ::timeout))))
+          (finally
+            (kd/set-deref-spins! spins0)))))))
+
+
+(deftest test-subscribe
+  (testing "cancelled callbacks are not called"
+    (let [d (kd/create)
+          calls (atom #{})
+          hs (vec (for [i (range 1000)]
+                    (kd/subscribe! d #(swap! calls conj [i %]) #(swap! calls conj [i (ex-message %)]))))]
+      (is (every? true? (map kd/unsubscribe! (take-nth 2 hs))))
+      (is (every? false? (map kd/unsubscribe! (take-nth 2 hs))))
+      (kd/success! d 1)
+      (is (= (set (for [i (range 1 1000 2)] [i 1])) @calls))
+      (is (every? false? (map kd/unsubscribe! hs)))))
+
+  (testing "realized deferred"
+    (let [p (promise)]
+      (is (false? (kd/unsubscribe! (kd/subscribe! (kd/wrap-err (ex-info "boom" {})) identity p))))
+      (is (= "boom" (ex-message @p)))))
+
+  (testing "concurrent subscribe and unsubscribe"
+    (let [d (kd/create)
+          calls (java.util.concurrent.atomic.AtomicLong.)
+          kept (java.util.concurrent.atomic.AtomicLong.)
+          fs (doall
+              (for [_ (range 8)]
+                (kd/future
+                  (dotimes [i 10000]
+                    (let [h (kd/subscribe! d (fn [_] (.incrementAndGet calls)) identity)]
+                      (if (zero? (mod i 100))
+                        (.incrementAndGet kept)
+                        (kd/unsubscribe! h)))))))]
+      @(kd/zip* fs)
+      (kd/success! d 1)
+      (is (= 800 (.get kept) (.get calls))))))
+
+
 (comment
   (clojure.test/test-ns *ns*))
@@ -280,7 +280,17 @@
    (binding [*dyn-var* 1]
      (is (= {y1 0, y2 0, y3 0, y4 0, y5 0} @(yank {} [y5] {:bindings false})))
      (is (= {y1 1, y2 1, y3 1, y4 1, y5 1} @(yank {} [y5] {:bindings true})))
-     (is (= {y1 1, y2 1, y3 1, y4 1, y5 1} @(yank {} [y5] {}))))))
+     (is (= {y1 1, y2 1, y3 1, y4 1, y5 1} @(yank {} [y5] {}))))
+
+   (def ^:dynamic *other-var* 0)
+   (defyarn y6 {_ y5} [*dyn-var* *other-var*])
+
+   (binding [*dyn-var* 1, *other-var* 1]
+     (is (= {y1 1, y2 1, y3 1, y4 1, y5 1, y6 [1 0]} @(yank {} [y6] {:bindings #{#'*dyn-var*}})))
+     (is (= {y1 0, y2 0, y3 0, y4 0, y5 0, y6 [0 1]} @(yank {} [y6] {:bindings #{#'*other-var*}})))
+     (is (= {y1 0, y2 0, y3 0, y4 0, y5 0, y6 [0 0]} @(yank {} [y6] {:bindings #{}})))
+     (is (= {y1 1, y2 1, y3 1, y4 1, y5 1, y6 [1 0]}
+            @(future @(yank {} [y6] {:bindings #{#'*dyn-var*}})))))))
 
 
 
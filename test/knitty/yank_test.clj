@@ -5,7 +5,9 @@
             [knitty.core :as knitty :refer [defyarn yank yank* yank1]]
             [knitty.deferred :as kd]
             [knitty.test-util :as tu :refer [do-defs]]
-            [manifold.deferred :as md]))
+            [knitty.testing :as kt]
+            [manifold.deferred :as md])
+  (:import [knitty.javaimpl YarnCache]))
 
 
 (t/use-fixtures :each
@@ -121,5 +123,639 @@
    ))
 
 
+(deftest yank-plan-test
+
+  (do-defs
+   (defyarn y1 {} 1)
+   (defyarn y2 {y1 y1} (* y1 2))
+   (defyarn y3 {y2 y2} (* y2 2))
+   (defyarn y4 {} 4)
+
+   (testing "plan keeps reachable yarns"
+     (let [p (knitty/compile-plan [y3])]
+       (is (= #{y1 y2 y3} (.-reachable p)))
+       (is (= [y3] (.-targets p)))))
+
+   (testing "yank plan"
+     (let [p (knitty/compile-plan [y2 y4])]
+       (is (= {y1 1, y2 2, y4 4} @(knitty/yank-plan {} p)))
+       (is (= {y1 10, y2 20, y4 4} @(knitty/yank-plan {y1 10} p)))
+       (is (== 20 (get @(knitty/yank-plan* {y1 10} p) y2)))))
+
+   (testing "plan with adhoc yarns"
+     (let [p (knitty/compile-plan [(knitty/yarn ::y5 {x y3} (inc x))])]
+       (is (= {y1 1, y2 2, y3 4, ::y5 5} @(knitty/yank-plan {} p)))))
+
+   (testing "plan is bound to its registry"
+     (let [p (knitty/compile-plan [y2])]
+       (defyarn y1 {} 100)
+       (is (= {y1 1, y2 2} @(knitty/yank-plan {} p)))
+       (is (= {y1 100, y2 200} @(yank {} [y2])))))
+
+   (testing "unknown yarn"
+     (is (thrown? IllegalArgumentException (knitty/compile-plan [::unknown-yarn]))))
+
+   (testing "plan propagates error"
+     (defyarn fail {} (throw (IllegalStateException. "my error")))
+     (let [p (knitty/compile-plan [fail])
+           e (try @(knitty/yank-plan {} p) (catch clojure.lang.ExceptionInfo e e))]
+       (is (knitty/yank-error? e))
+       (is (= [fail] (:knitty/yarns (ex-data e))))))))
+
+
+(deftest yank-compact-plan-test
+
+  (do-defs
+   (defyarn y1 {} 1)
+   (defyarn y2 {y1 y1} (* y1 2))
+   (defyarn y3 {y2 y2} (* y2 2))
+   (defyarn y4 {} 4)
+   (defyarn y5 {^:case f #{y1 y4}} (f y4))
+
+   (let [p (knitty/compile-plan knitty/*registry* [y3 y5] {:compact true})]
+
+     (testing "compact plan"
+       (is (.isCompact p))
+       (is (= {y1 1, y2 2, y3 4, y4 4, y5 4} @(knitty/yank-plan {} p)))
+       (is (= {y1 10, y2 20, y3 40, y4 4, y5 4} @(knitty/yank-plan {y1 10} p))))
+
+     (testing "compact yank result"
+       (let [yr @(knitty/yank-plan* {y1 10} p)]
+         (is (== 40 (get yr y3)))
+         (is (= ::nope (get yr ::unknown ::nope)))
+         (testing "used as inputs"
+           (is (= 40 (get @(yank* yr [y3]) y3))))))
+
+     (testing "preload unreachable inputs"
+       (is (= {y1 10, y2 20, y3 40, y4 4, y5 4, ::other 1}
+              @(knitty/yank-plan {y1 10, ::other 1} p {:preload true}))))
+
+     (testing "compact batch"
+       (is (= [40 80] (map #(get % y3) @(knitty/yank-batch* [{y1 10} {y1 20}] p))))))))
+
+
+(deftest yank-batch-test
+
+  (do-defs
+   (defyarn y1 {} 1)
+   (defyarn y2 {y1 y1} (* y1 2))
+   (defyarn y3 {y2 y2} (kd/future (* y2 2)))
+   (defyarn fail {y1 y1} (when (= y1 13) (throw (IllegalStateException. "my error"))))
+
+   (testing "results are in input order"
+     (let [ins (for [i (range 100)] {y1 i})]
+       (is (= (for [i (range 100)] {y1 i, y2 (* 2 i), y3 (* 4 i)})
+              @(knitty/yank-batch ins [y3])))
+       (is (= (for [i (range 100)] {y1 i, y2 (* 2 i)})
+              @(knitty/yank-batch ins [y2] {:chunk-size 1})))
+       (is (= (for [i (range 100)] {y1 i, y2 (* 2 i)})
+              @(knitty/yank-batch ins (knitty/compile-plan [y2]) {:chunk-size 7})))))
+
+   (testing "batch yank* results"
+     (let [rs @(knitty/yank-batch* [{} {y1 10}] [y2])]
+       (is (= [2 20] (map #(get % y2) rs)))))
+
+   (testing "empty batch"
+     (is (= [] @(knitty/yank-batch [] [y2]))))
+
+   (testing "batch fails with the first error"
+     (let [e (try @(knitty/yank-batch (for [i (range 20)] {y1 i}) [fail])
+                  (catch clojure.lang.ExceptionInfo e e))]
+       (is (knitty/yank-error? e))
+       (is (= {y1 13} (:knitty/inputs (ex-data e))))))))
+
+
+
+(deftest re-yank-test
+
+  (do-defs
+   (def calls (atom {}))
+   (defn called [k] (swap! calls update k (fnil inc 0)))
+   (defyarn a {} (called :a) 1)
+   (defyarn b {} (called :b) 2)
+   (defyarn sa {a a} (called :sa) (* a 10))
+   (defyarn sb {b b} (called :sb) (kd/future (* b 10)))
+   (defyarn total {sa sa, sb sb} (called :total) (+ sa sb))
+   (defyarn fail {a a} (called :fail) (when (= a 1) (throw (IllegalStateException. "my error"))))
+
+   (let [yr @(yank* {} [total])]
+
+     (testing "only downstream yarns are recomputed"
+       (reset! calls {})
+       (let [yr2 @(knitty/re-yank* yr {a 2})]
+         (is (= {a 2, b 2, sa 20, sb 20, total 40} (knitty/yr->map yr2)))
+         (is (= {:sa 1, :total 1} @calls))
+         (testing "chained"
+           (reset! calls {})
+           (is (= {a 2, b 3, sa 20, sb 30, total 50} @(knitty/re-yank yr2 {b 3})))
+           (is (= {:sb 1, :total 1} @calls)))))
+
+     (testing "changed computed yarn"
+       (reset! calls {})
+       (is (= {a 1, b 2, sa 5, sb 20, total 25} @(knitty/re-yank yr {sa 5})))
+       (is (= {:total 1} @calls)))
+
+     (testing "unrelated changes"
+       (reset! calls {})
+       (is (= {a 1, b 2, sa 10, sb 20, total 30, ::other 1} @(knitty/re-yank yr {::other 1})))
+       (is (= {} @calls)))
+
+     (testing "previous result is untouched"
+       (is (= {a 1, b 2, sa 10, sb 20, total 30} (knitty/yr->map yr))))
+
+     (testing "registry of the result is used"
+       (binding [knitty/*registry* (knitty.impl/create-registry)]
+         (is (= {a 2, b 2, sa 20, sb 20, total 40} @(knitty/re-yank yr {a 2}))))))
+
+   (testing "failed yarns are recomputed"
+     (let [yr (try @(yank* {} [fail]) (catch clojure.lang.ExceptionInfo e (:knitty/result (ex-data e))))]
+       (is (= {a 3, fail nil} @(knitty/re-yank yr {a 3})))
+       (testing "errors report targets of the result"
+         (let [e (try @(knitty/re-yank yr {b 5}) (catch clojure.lang.ExceptionInfo e e))]
+           (is (= [fail] (:knitty/yarns (ex-data e))))
+           (is (= {b 5} (:knitty/inputs (ex-data e))))))))))
+
+
+
+(deftest yarn-cache-test
+
+  (do-defs
+   (def calls (atom 0))
+   (defyarn a {} 1)
+   (defyarn b {} 2)
+   (defyarn ^:cache sum {a a, b b} (swap! calls inc) (+ a b))
+   (defyarn ^{:cache true} asum {a a, b b} (swap! calls inc) (kd/future (+ a b)))
+   (defyarn ^{:cache {:max-size 2}} small {a a} (swap! calls inc) a)
+   (defyarn ^{:cache true, :cache-key (fn [m] (mod (get m ::a) 10))} byk {a a} (swap! calls inc) a)
+
+   (testing "values are cached across yanks"
+     (reset! calls 0)
+     (is (= 3 @(yank1 {} sum)))
+     (is (= 3 @(yank1 {} sum)))
+     (is (= 21 @(yank1 {a 1, b 20} sum)))
+     (is (= 2 @calls))
+     (is (= {:hits 1, :misses 2, :evictions 0, :size 2, :max-size 1024}
+            (get (knitty/yarn-cache-stats) sum))))
+
+   (testing "async values"
+     (reset! calls 0)
+     (is (= 3 @(yank1 {} asum)))
+     (is (= 3 @(yank1 {} asum)))
+     (is (= 1 @calls)))
+
+   (testing "custom cache key"
+     (reset! calls 0)
+     (is (= 1 @(yank1 {} byk)))
+     (is (= 1 @(yank1 {a 11} byk)))
+     (is (= 1 @calls)))
+
+   (testing "bounded size"
+     (reset! calls 0)
+     (doseq [i (range 10)]
+       (is (= i @(yank1 {a i} small))))
+     (is (= 10 @calls))
+     (is (<= (:size (get (knitty/yarn-cache-stats) small)) 2))
+     (is (pos? (:evictions (get (knitty/yarn-cache-stats) small)))))
+
+   (testing "queue compaction keeps live entries"
+     (let [c (YarnCache. 4 0)]
+       (.put c :a 1)
+       (.put c :b 2)
+       (dotimes [i 8] (.put c :x i))
+       (is (= [1 2 7] (mapv #(.get c %) [:a :b :x])))
+       (is (= {:size 3, :evictions 0} (select-keys (.stats c) [:size :evictions])))))
+
+   (testing "clear caches"
+     (knitty/clear-yarn-caches!)
+     (reset! calls 0)
+     (is (= 3 @(yank1 {} sum)))
+     (is (= 1 @calls))))
+
+  (testing "redefined yarn drops cache"
+    (do-defs
+     (defyarn a {} 1)
+     (defyarn ^:cache c {a a} (* a 10))
+     (is (= 10 @(yank1 {} c)))
+     (defyarn ^:cache c {a a} (* a 100))
+     (is (= 100 @(yank1 {} c)))))
+
+  (testing "registry with a mocked yarn has own caches"
+    (do-defs
+     (defyarn a {} 1)
+     (defyarn ^:cache c {a a} (* a 10))
+     (is (= 10 @(yank1 {} c)))
+     (kt/with-yarns [(knitty/yarn ::c ^:cache {a ::a} :mock)]
+       (is (= :mock @(yank1 {} c))))
+     (is (= 10 @(yank1 {} c)))))
+
+  (testing "only sync dependencies"
+    (is (thrown? Exception
+                 (eval `(knitty/yarn ::bad ^:cache {^:defer x# ::bad-dep} x#))))))
+
+
+
+(deftest yarn-coalesce-test
+
+  (do-defs
+   (def calls (atom 0))
+   (def gate (atom (kd/create)))
+   (defyarn a {} 1)
+   (defyarn ^:coalesce fetch {a a}
+     (swap! calls inc)
+     (kd/bind @gate (fn [x] (if (= x ::fail) (throw (ex-info "fail" {})) (+ a x)))))
+
+   (testing "concurrent yanks share a computation"
+     (let [rs (doall (for [_ (range 10)] (yank1 {} fetch :executor nil)))
+           r2 (yank1 {a 2} fetch :executor nil)]
+       (is (= 2 @calls))
+       (is (= {:calls 2, :coalesced 9, :in-flight 2} (get (knitty/yarn-coalesce-stats) fetch)))
+       (kd/success! @gate 10)
+       (is (= (repeat 10 11) (map deref rs)))
+       (is (= 12 @r2))
+       (is (zero? (:in-flight (get (knitty/yarn-coalesce-stats) fetch))))))
+
+   (testing "realized computation is not reused"
+     (reset! calls 0)
+     (reset! gate (kd/create))
+     (let [r (yank1 {} fetch :executor nil)]
+       (kd/success! @gate 20)
+       (is (= 21 @r)))
+     (is (= 1 @calls)))
+
+   (testing "errors are shared"
+     (reset! gate (kd/create))
+     (let [rs (doall (for [_ (range 5)] (yank1 {} fetch :executor nil)))]
+       (kd/success! @gate ::fail)
+       (doseq [r rs]
+         (is (thrown? clojure.lang.ExceptionInfo @r)))
+       (is (zero? (:in-flight (get (knitty/yarn-coalesce-stats) fetch))))))
+
+   (testing "mocked yarn does not share computations with the original registry"
+     (reset! gate (kd/create))
+     (let [m (kt/with-yarns [(knitty/yarn ::fetch ^:coalesce {a ::a} (kd/bind @gate (constantly :mock)))]
+               (yank1 {} fetch :executor nil))
+           r (yank1 {} fetch :executor nil)]
+       (kd/success! @gate 30)
+       (is (= :mock @m))
+       (is (= 31 @r))))))
+
+
+
+(deftest yank-timeout-test
+
+  (do-defs
+   (def calls (atom 0))
+   (defyarn slow {} (kd/sleep 1 100))
+   (defyarn after-slow {s slow} (swap! calls inc) s)
+   (defyarn fast {} 2)
+   (defyarn ^{:timeout 20} slow-yarn {} (kd/sleep 3 500))
+   (defyarn ^{:timeout 200} fast-yarn {} (kd/sleep 4 1))
+
+   (testing "yank timeout"
+     (let [e (try @(yank* {} [after-slow] {:timeout 20})
+                  (catch clojure.lang.ExceptionInfo e e))]
+       (is (knitty/yank-error? e))
+       (is (instance? java.util.concurrent.TimeoutException (ex-cause e)))
+       @(kd/sleep 150)
+       (is (zero? @calls))))
+
+   (testing "batch timeout"
+     (reset! calls 0)
+     (let [e (try @(knitty/yank-batch* [{} {}] [after-slow] {:timeout 20})
+                  (catch clojure.lang.ExceptionInfo e e))]
+       (is (knitty/yank-error? e))
+       (is (instance? java.util.concurrent.TimeoutException (ex-cause e)))
+       (is (= [{} {}] (:knitty/inputs (ex-data e))))
+       @(kd/sleep 150)
+       (is (zero? @calls))))
+
+   (testing "absolute deadline"
+     (is (thrown? clojure.lang.ExceptionInfo
+                  @(yank* {} [slow] {:deadline-ms (+ (System/currentTimeMillis) 20)})))
+     (is (= 2 (get @(yank* {} [fast] {:deadline-ms (+ (System/currentTimeMillis) 1000)}) fast))))
+
+   (testing "no timeout when yank is fast"
+     (is (= {fast 2, slow 1} @(yank {} [fast slow] {:timeout 1000}))))
+
+   (testing "yarn timeout"
+     (is (= 4 @(yank1 {} fast-yarn)))
+     (let [e (try @(yank {} [slow-yarn])
+                  (catch clojure.lang.ExceptionInfo e e))]
+       (is (instance? java.util.concurrent.TimeoutException (ex-cause e)))))))
+
+
+
+(deftest yank-priority-test
+
+  (do-defs
+   (def order (atom []))
+   (defyarn a {} 1)
+   (defyarn y {a a} (swap! order conj a) a)
+
+   (let [single (java.util.concurrent.Executors/newSingleThreadExecutor)
+         pe (kd/priority-executor single)
+         started (java.util.concurrent.CountDownLatch. 1)
+         latch (java.util.concurrent.CountDownLatch. 1)]
+     (try
+       (.execute pe #(do (.countDown started) (.await latch)))
+       (.await started)
+       (let [rs [(yank1 {a :low} y {:executor pe, :priority :low})
+                 (yank1 {a 0} y {:executor pe})
+                 (yank1 {a :late} y {:executor pe, :priority 5, :timeout 10000})
+                 (yank1 {a :early} y {:executor pe, :priority 5, :timeout 1000})
+                 (yank1 {a :high} y {:executor pe, :priority :high})]]
+         (.countDown latch)
+         (is (= [:low 0 :late :early :high] (mapv deref rs)))
+         (is (= [:high :early :late 0 :low] @order)))
+       (finally
+         (.shutdown single))))))
+
+
+
+(deftest yank-virtual-threads-test
+
+  (if-not (kd/virtual-threads-supported?)
+    (is (thrown? UnsupportedOperationException (kd/virtual-executor)))
+    (do-defs
+     (def ^:dynamic *v* 0)
+     (defyarn a {} (Thread/sleep 1) (knitty.javaimpl.VirtualExecutor/isVirtualThread))
+     (defyarn b {a a} (kd/future (+ *v* (if a 1 0))))
+     (defyarn c {a a, b b} [a b])
+     (binding [*v* 10]
+       (is (= [true 11] @(yank1 {} c {:executor (kd/virtual-executor)})))))))
+
+
+
+(deftest yank-blocking-test
+
+  (do-defs
+   (defyarn a {} 1)
+   (defyarn ^:blocking b {a a} (Thread/sleep 10) (inc a))
+   (defyarn ^:blocking fail {a a} (throw (IllegalStateException. "my error")))
+
+   (let [pool (kd/build-fork-join-pool {:parallelism 2, :max-compensation 4})]
+     (try
+       (testing "compensated calls"
+         (is (= (repeat 8 2) @(kd/zip* (repeatedly 8 #(yank1 {} b {:executor pool})))))
+         (let [{:keys [managed direct active]} (kd/blocking-stats pool)]
+           (is (pos? managed))
+           (is (= 8 (+ managed direct)))
+           (is (zero? active))))
+       (testing "errors"
+         (is (thrown? clojure.lang.ExceptionInfo @(yank1 {} fail {:executor pool}))))
+       (finally
+         (.shutdown pool))))
+
+   (testing "compensation cap"
+     (let [pool (kd/build-fork-join-pool {:parallelism 2, :max-compensation 0})]
+       (try
+         (is (= 2 @(yank1 {} b {:executor pool})))
+         (is (= {:managed 0, :direct 1, :active 0, :max-compensation 0}
+                (kd/blocking-stats pool)))
+         (finally
+           (.shutdown pool)))))
+
+   (testing "outside of ForkJoinPool"
+     (is (= 2 @(yank1 {} b {:executor nil})))
+     (is (nil? (kd/blocking-stats (reify java.util.concurrent.Executor (execute [_ r] (.run r)))))))))
+
+
+
+(deftest yank-executor-test
+
+  (do-defs
+   (def running (atom 0))
+   (def max-running (atom 0))
+   (def ^java.util.concurrent.ExecutorService tp
+     (java.util.concurrent.Executors/newFixedThreadPool
+      4 (reify java.util.concurrent.ThreadFactory
+          (newThread [_ r] (Thread. ^Runnable r "test-bulkhead")))))
+   (knitty/register-executor! ::bh (kd/bulkhead tp 1))
+
+   (defyarn a {} 1)
+   (defyarn ^{:executor ::bh} b {a a}
+     (swap! max-running max (swap! running inc))
+     (Thread/sleep 5)
+     (swap! running dec)
+     [(.getName (Thread/currentThread)) (inc a)])
+   (defyarn ^{:executor ::bh} c {b b} (kd/future (second b)))
+   (defyarn ^{:executor ::bh} d {c c} [(.getName (Thread/currentThread)) c])
+   (defyarn ^{:executor ::unknown} e {a a} a)
+
+   (try
+     (testing "runs on a named executor"
+       (is (= ["test-bulkhead" 2] @(yank1 {} b)))
+       (is (= ["test-bulkhead" 2] @(yank1 {} d))))
+
+     (testing "concurrency limit"
+       (is (= (repeat 8 ["test-bulkhead" 2]) @(kd/zip* (repeatedly 8 #(yank1 {} b)))))
+       (is (= 1 @max-running))
+       (Thread/sleep 20) ;; let tasks leave the bulkhead
+       (is (= {:queued 0, :active 0, :max-concurrency 1}
+              (-> (knitty/executor-stats) ::bh (dissoc :completed))))
+       (is (pos? (-> (knitty/executor-stats) ::bh :completed))))
+
+     (testing "unknown executor"
+       (is (thrown? clojure.lang.ExceptionInfo @(yank1 {} e))))
+
+     (finally
+       (knitty/register-executor! ::bh nil)
+       (.shutdown tp)))
+
+   (is (nil? (::bh (knitty/executor-stats))))))
+
+
+(deftest yank-pool-stats-test
+
+  (do-defs
+   (defyarn a {} 1)
+   (defyarn ^:fork b {a a} (inc a))
+   (defyarn c {b b} (kd/future (inc b)))
+
+   (let [pool (kd/build-fork-join-pool {:parallelism 2})]
+     (try
+       (is (nil? (knitty/pool-stats pool)))
+       (is (= 3 @(yank1 {} c {:executor pool})))
+       (is (nil? (knitty/pool-stats pool)) "disabled by default")
+
+       (testing "records tasks and hops"
+         (dotimes [_ 10]
+           (is (= 3 @(yank1 {} c {:executor pool, :pool-stats true}))))
+         (Thread/sleep 10) ;; let listeners record hops
+         (let [{:keys [queue-wait run-time hops]} (knitty/pool-stats pool)]
+           (is (<= 10 (:count queue-wait)))
+           (is (= (:count queue-wait) (:count run-time)))
+           (is (every? #(contains? run-time %) [:mean :max :p50 :p90 :p99 :p999]))
+           (is (= 10 (:count hops)))
+           (is (pos? (:max hops)))))
+
+       (testing "reset"
+         (knitty/reset-pool-stats! pool)
+         (is (zero? (-> (knitty/pool-stats pool) :run-time :count))))
+       (finally
+         (.shutdown pool))))))
+
+
+(deftest yank-inline-depth-test
+
+  (do-defs
+   (def pool (kd/build-fork-join-pool {:parallelism 2}))
+   (defyarn n0 {} (kd/future-with pool 0))
+   (doseq [i (range 1 201)]
+     (eval `(defyarn ~(symbol (str "n" i))
+              {~(with-meta 'x {:defer true}) ~(keyword (str *ns*) (str "n" (dec i)))}
+              (kd/bind ~'x inc))))
+
+   (let [old (knitty/set-max-inline-depth! 0)]
+     (try
+       (doseq [d [0 1 8 1000]]
+         (testing d
+           (knitty/set-max-inline-depth! d)
+           (is (= 200 @(yank1 {} n200 {:executor pool})))))
+       (finally
+         (knitty/set-max-inline-depth! old)
+         (.shutdown ^java.util.concurrent.ExecutorService pool))))))
+
+
+(deftest yank-admission-test
+
+  (do-defs
+   (def gate (atom (kd/create)))
+   (defyarn a {} 1)
+   (defyarn b {a a} (kd/bind @gate (fn [_] (inc a))))
+
+   (testing "in-flight limit and bounded queue"
+     (let [ac (knitty/admission-control {:max-in-flight 2, :max-queued 1, :max-queue-ms 10000})
+           rs (doall (repeatedly 4 #(yank1 {} b {:admission ac})))]
+       (is (= {:in-flight 2, :queued 1, :admitted 2, :rejected 1, :expired 0}
+              (select-keys (knitty/admission-stats ac) [:in-flight :queued :admitted :rejected :expired])))
+       (is (thrown? clojure.lang.ExceptionInfo @(last rs)))
+       (let [e (try @(last rs) (catch Exception e e))]
+         (is (knitty/yank-rejected? e))
+         (is (knitty/yank-error? e))
+         (is (= {} (:knitty/inputs (ex-data e))))
+         (is (= [b] (:knitty/yarns (ex-data e)))))
+       (kd/success! @gate nil)
+       (is (= [2 2 2] (map deref (butlast rs))))
+       (is (= {:in-flight 0, :queued 0, :admitted 3, :rejected 1}
+              (select-keys (knitty/admission-stats ac) [:in-flight :queued :admitted :rejected])))))
+
+   (testing "max queue time"
+     (reset! gate (kd/create))
+     (let [ac (knitty/admission-control {:max-in-flight 1, :max-queued 10, :max-queue-ms 20})
+           r1 (yank1 {} b {:admission ac})
+           r2 (yank1 {} b {:admission ac})]
+       (is (knitty/yank-rejected? (try @r2 (catch Exception e e))))
+       (is (= 1 (:expired (knitty/admission-stats ac))))
+       (kd/success! @gate nil)
+       (is (= 2 @r1))))
+
+   (testing "revoked while queued"
+     (reset! gate (kd/create))
+     (let [ac (knitty/admission-control {:max-in-flight 1, :max-queued 10, :max-queue-ms 10000})
+           r1 (yank1 {} b {:admission ac})
+           r2 (yank1 {} b {:admission ac})]
+       (is (= 1 (:queued (knitty/admission-stats ac))))
+       (kd/error! r2 (ex-info "stop" {}))
+       (is (= 0 (:queued (knitty/admission-stats ac))))
+       (kd/success! @gate nil)
+       (is (= 2 @r1))
+       (is (= {:in-flight 0, :admitted 1}
+              (select-keys (knitty/admission-stats ac) [:in-flight :admitted])))))
+
+   (testing "attached to registry"
+     (let [ac (knitty/admission-control {:max-in-flight 1})]
+       (binding [knitty/*registry* (knitty.impl/with-admission-control knitty/*registry* ac)]
+         (is (= 2 @(yank1 {} b)))
+         (is (= 1 (:admitted (knitty/admission-stats))))
+         (is (= [2 2] (map ::b @(knitty/yank-batch* [{} {}] [b]))))
+         (is (= 2 (:admitted (knitty/admission-stats)))))))))
+
+
+(deftest yank-auto-fork-test
+
+  (do-defs
+   (defyarn a {} 1)
+   (defyarn ^{:fork :auto} cheap {a a} (inc a))
+   (defyarn ^{:fork :auto} costly {a a} (Thread/sleep 2) (inc a))
+
+   (dotimes [_ 20]
+     (is (= [2 2] ((juxt ::cheap ::costly) @(yank {} [cheap costly])))))
+
+   (let [{:keys [::cheap ::costly]} (knitty/auto-fork-stats)]
+     (is (= {:fork false, :forked 0, :inlined 20} (dissoc cheap :ewma-ns)))
+     (is (:fork costly))
+     (is (= 20 (+ (:forked costly) (:inlined costly))))
+     (is (pos? (:forked costly))))
+
+   (testing "threshold"
+     (let [old (knitty/set-auto-fork-threshold! 0)]
+       (try
+         (is (= 2 @(yank1 {} cheap)))
+         (is (= 1 (:forked (::cheap (knitty/auto-fork-stats)))))
+         (finally
+           (knitty/set-auto-fork-threshold! old)))))))
+
+
+(deftest yank-primitive-yarns-test
+
+  (do-defs
+   (defyarn a {} 20)
+   (defyarn ^long b {^long a a} (* a 2))
+   (defyarn ^double c {^long b b, ^double a a} (/ b (+ a 0.5)))
+   (defyarn d {b b, c c} [b c])
+   (defyarn ^long e {^:defer b b} (if (kd/deferred? b) 1 0))
+   (defyarn ^long bad {a a} (kd/future a))
+
+   (is (= 40 @(yank1 {} b)))
+   (is (= 40 @(yank1 {a 20.5} b)))
+   (is (= [38 1.9] @(yank1 {a 19.5} d)))
+   (is (= {::a 20, ::b 40, ::c (/ 40 20.5), ::d [40 (/ 40 20.5)]}
+          @(yank {} [d])))
+   (is (= 1 @(yank1 {} e)))
+   (is (thrown? Exception @(yank1 {} bad)))
+   (is (thrown? Exception (eval `(defyarn ~(with-meta 'z {:tag 'long, :cache true}) {a# ~::a} a#))))))
+
+
+(deftest yank-cancel-async-results-test
+
+  (do-defs
+   (def pending (atom nil))
+   (def stopped (promise))
+   (defyarn a {} 1)
+   (defyarn b {a a} (reset! pending (md/deferred)))
+   (defyarn ^:fork spin {a a}
+     (loop []
+       (if (knitty/cancelled?)
+         (deliver stopped true)
+         (do (Thread/sleep 1) (recur)))))
+
+   (testing "revoked yank cancels async results and stops yarns"
+     (let [r (yank* {} [b spin])]
+       (is (some? (first (drop-while nil? (repeatedly 1000 #(do (Thread/sleep 1) @pending))))))
+       (kd/error! r (ex-info "stop" {}))
+       (is (instance? java.util.concurrent.CancellationException (md/error-value @pending nil)))
+       (is (true? (deref stopped 1000 false)))))
+
+   (testing "timeout cancels async results"
+     (is (thrown? clojure.lang.ExceptionInfo @(yank1 {} b {:timeout 10})))
+     (is (instance? java.util.concurrent.CancellationException (md/error-value @pending nil))))
+
+   (defyarn c {a a} (reset! pending (kd/future (inc a))))
+   (testing "finished yank does not touch realized results"
+     (is (= 2 @(yank1 {} c)))
+     (is (= 2 @@pending)))
+
+   (defyarn f {a a} (reset! pending (java.util.concurrent.CompletableFuture.)))
+   (testing "plain futures are yarn values and are not cancelled"
+     (reset! pending nil)
+     (let [r (yank* {} [f spin])]
+       (is (some? (first (drop-while nil? (repeatedly 1000 #(do (Thread/sleep 1) @pending))))))
+       (kd/error! r (ex-info "stop" {}))
+       (is (not (.isCancelled ^java.util.concurrent.Future @pending)))))
+
+   (is (thrown? clojure.lang.Compiler$CompilerException (eval `(knitty/cancelled?))))))
+
+
 (comment
   (clojure.test/test-ns *ns*))